@@ -0,0 +1,74 @@
+package net.pmarks.chromadoze;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.util.Log;
+import android.view.View;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertTrue;
+
+// Frame-time test: drawing one invalidated column, as a drag does, against
+// redrawing the whole view.  Draws into a software Canvas, which honors the
+// clip the same way a dirty-region redraw does.  The printed numbers are
+// what to compare between versions and devices.
+@RunWith(AndroidJUnit4.class)
+public class EqualizerViewFrameTimeTest {
+    private static final String TAG = "EqualizerViewFrameTime";
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1440;
+    private static final int FRAMES = 300;
+
+    @Test
+    public void columnRedrawBeatsFullRedraw() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                final EqualizerView view = new EqualizerView(
+                        InstrumentationRegistry.getInstrumentation().getTargetContext(), null);
+                view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                        View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+                view.layout(0, 0, WIDTH, HEIGHT);
+
+                final Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+                final Canvas canvas = new Canvas(bitmap);
+                // Build the cached layer before timing anything.
+                view.draw(canvas);
+
+                // A column as invalidateChangedBars() would dirty it.
+                final int barWidth = WIDTH / (SpectrumData.BAND_COUNT + 2);
+                final int left = barWidth * (SpectrumData.BAND_COUNT / 2 + 1);
+                final int right = left + barWidth * 3;
+
+                long fullNs = Long.MAX_VALUE;
+                long columnNs = Long.MAX_VALUE;
+                // Keep the best of several passes, to skip warmup and GC.
+                for (int pass = 0; pass < 5; pass++) {
+                    long startNs = System.nanoTime();
+                    for (int i = 0; i < FRAMES; i++) {
+                        view.draw(canvas);
+                    }
+                    fullNs = Math.min(fullNs, (System.nanoTime() - startNs) / FRAMES);
+
+                    startNs = System.nanoTime();
+                    for (int i = 0; i < FRAMES; i++) {
+                        canvas.save();
+                        canvas.clipRect(left, 0, right, HEIGHT);
+                        view.draw(canvas);
+                        canvas.restore();
+                    }
+                    columnNs = Math.min(columnNs, (System.nanoTime() - startNs) / FRAMES);
+                }
+                bitmap.recycle();
+                Log.i(TAG, String.format("full redraw %.3f ms, one column %.3f ms",
+                        fullNs / 1e6, columnNs / 1e6));
+                assertTrue(columnNs < fullNs);
+            }
+        });
+    }
+}
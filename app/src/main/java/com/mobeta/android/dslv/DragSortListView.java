@@ -24,7 +24,6 @@ package com.mobeta.android.dslv;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 
 import net.pmarks.chromadoze.R;
 import android.content.Context;
@@ -39,7 +38,6 @@ import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.util.SparseBooleanArray;
-import android.util.SparseIntArray;
 import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.View;
@@ -828,43 +826,58 @@ public class DragSortListView extends ListView {
 
     private class HeightCache {
 
-        private final SparseIntArray mMap;
-        private final ArrayList<Integer> mOrder;
-        private final int mMaxSize;
+        // Parallel arrays, oldest entry first. The cache is tiny and
+        // queried on every drag move, so a linear scan beats a map and
+        // nothing here allocates or boxes.
+        private final int[] mPositions;
+        private final int[] mHeights;
+        private int mSize = 0;
 
         public HeightCache(int size) {
-            mMap = new SparseIntArray(size);
-            mOrder = new ArrayList<Integer>(size);
-            mMaxSize = size;
+            mPositions = new int[size];
+            mHeights = new int[size];
         }
 
         /**
          * Add item height at position if doesn't already exist.
          */
         public void add(int position, int height) {
-            int currHeight = mMap.get(position, -1);
-            if (currHeight != height) {
-                if (currHeight == -1) {
-                    if (mMap.size() == mMaxSize) {
-                        // remove oldest entry
-                        mMap.delete(mOrder.remove(0));
-                    }
+            int i = indexOf(position);
+            if (i >= 0 && mHeights[i] == height) {
+                return;
+            }
+            if (i < 0) {
+                if (mSize == mPositions.length) {
+                    // remove oldest entry
+                    i = 0;
                 } else {
-                    // move position to newest slot
-                    mOrder.remove((Integer) position);
+                    i = mSize++;
                 }
-                mMap.put(position, height);
-                mOrder.add(position);
             }
+            // move position to newest slot
+            final int last = mSize - 1;
+            System.arraycopy(mPositions, i + 1, mPositions, i, last - i);
+            System.arraycopy(mHeights, i + 1, mHeights, i, last - i);
+            mPositions[last] = position;
+            mHeights[last] = height;
         }
 
         public int get(int position) {
-            return mMap.get(position, -1);
+            final int i = indexOf(position);
+            return i >= 0 ? mHeights[i] : -1;
         }
 
         public void clear() {
-            mMap.clear();
-            mOrder.clear();
+            mSize = 0;
+        }
+
+        private int indexOf(int position) {
+            for (int i = 0; i < mSize; i++) {
+                if (mPositions[i] == position) {
+                    return i;
+                }
+            }
+            return -1;
         }
 
     }
@@ -1868,6 +1881,37 @@ public class DragSortListView extends ListView {
         }
     }
 
+    /**
+     * Like {@link #adjustAllItems()}, but after a drag move, when only the
+     * old and new expanded positions and the source position can have
+     * changed. Every other item is already at WRAP_CONTENT, so this costs
+     * the same however many rows are visible.
+     */
+    private void adjustChangedItems(int oldFirstExpPos, int oldSecondExpPos) {
+        adjustItemIfDraggable(oldFirstExpPos);
+        if (oldSecondExpPos != oldFirstExpPos) {
+            adjustItemIfDraggable(oldSecondExpPos);
+        }
+        if (mFirstExpPos != oldFirstExpPos && mFirstExpPos != oldSecondExpPos) {
+            adjustItemIfDraggable(mFirstExpPos);
+        }
+        if (mSecondExpPos != mFirstExpPos && mSecondExpPos != oldFirstExpPos
+                && mSecondExpPos != oldSecondExpPos) {
+            adjustItemIfDraggable(mSecondExpPos);
+        }
+        if (mSrcPos != mFirstExpPos && mSrcPos != mSecondExpPos
+                && mSrcPos != oldFirstExpPos && mSrcPos != oldSecondExpPos) {
+            adjustItemIfDraggable(mSrcPos);
+        }
+    }
+
+    private void adjustItemIfDraggable(int position) {
+        if (position >= getHeaderViewsCount()
+                && position < getCount() - getFooterViewsCount()) {
+            adjustItem(position);
+        }
+    }
+
     private void adjustItem(int position) {
         View v = getChildAt(position - getFirstVisiblePosition());
 
@@ -2339,7 +2383,7 @@ public class DragSortListView extends ListView {
         boolean updated = updatePositions();
 
         if (updated) {
-            adjustAllItems();
+            adjustChangedItems(oldFirstExpPos, oldSecondExpPos);
             int scroll = adjustScroll(movePos, moveItem, oldFirstExpPos,
                     oldSecondExpPos);
             // Log.d("mobeta", "  adjust scroll="+scroll);
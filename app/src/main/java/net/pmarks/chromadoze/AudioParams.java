@@ -8,23 +8,48 @@ import android.os.Build;
 
 import androidx.annotation.RequiresApi;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 class AudioParams {
     final static int STREAM_TYPE = AudioManager.STREAM_MUSIC;
     final static int CHANNEL_CONFIG = AudioFormat.CHANNEL_OUT_STEREO;
     final static int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
     final static int SHORTS_PER_SAMPLE = 2;  // 16-bit Stereo
+    final static int BYTES_PER_SHORT = 2;
     final static int BYTES_PER_SAMPLE = 4;  // 16-bit Stereo
     final static int LATENCY_MS = 100;
+    final int BUF_LATENCY_MS;
     final int SAMPLE_RATE;
     final int BUF_BYTES;
     final int BUF_SAMPLES;
+    // AudioTrack capacity.  On N+, this leaves room to grow the buffer
+    // with setBufferSizeInFrames(); see PowerPolicy.
+    final int TRACK_BYTES;
+    final static int LARGE_BUFFER_SCALE = 2;
 
     AudioParams() {
+        this(LATENCY_MS);
+    }
+
+    // A deeper buffer gives a slow device more slack; see DeviceProfile.
+    AudioParams(int latencyMs) {
+        BUF_LATENCY_MS = latencyMs;
         SAMPLE_RATE = AudioTrack.getNativeOutputSampleRate(STREAM_TYPE);
         BUF_BYTES = Math.max(
                 AudioTrack.getMinBufferSize(SAMPLE_RATE, CHANNEL_CONFIG, AUDIO_FORMAT),
-                (SAMPLE_RATE * LATENCY_MS / 1000) * BYTES_PER_SAMPLE);
+                (SAMPLE_RATE * latencyMs / 1000) * BYTES_PER_SAMPLE);
         BUF_SAMPLES = BUF_BYTES / BYTES_PER_SAMPLE;
+        TRACK_BYTES = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ?
+                BUF_BYTES * LARGE_BUFFER_SCALE : BUF_BYTES;
+    }
+
+    void dumpStats(JSONObject out) throws JSONException {
+        out.put("sampleRate", SAMPLE_RATE);
+        out.put("latencyMs", BUF_LATENCY_MS);
+        out.put("bufBytes", BUF_BYTES);
+        out.put("bufSamples", BUF_SAMPLES);
+        out.put("trackBytes", TRACK_BYTES);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
@@ -50,7 +75,7 @@ class AudioParams {
                             .setChannelMask(CHANNEL_CONFIG)
                             .setEncoding(AUDIO_FORMAT)
                             .build(),
-                    BUF_BYTES,
+                    TRACK_BYTES,
                     AudioTrack.MODE_STREAM,
                     AudioManager.AUDIO_SESSION_ID_GENERATE);
         } else {
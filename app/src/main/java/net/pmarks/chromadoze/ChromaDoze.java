@@ -38,6 +38,8 @@ public class ChromaDoze extends AppCompatActivity implements
         NoiseService.PercentListener, UIState.LockListener, OnItemSelectedListener {
     private static final int MENU_PLAY_STOP = 1;
     private static final int MENU_LOCK = 2;
+    private static final int MENU_EXPORT = 3;
+    private static final int MENU_IMPORT = 4;
 
     private UIState mUiState;
     private int mFragmentId = FragmentIndex.ID_CHROMA_DOZE;
@@ -157,6 +159,15 @@ public class ChromaDoze extends AppCompatActivity implements
                     MenuItem.SHOW_AS_ACTION_ALWAYS);
         }
 
+        // The document picker needs KitKat.
+        if (mFragmentId == FragmentIndex.ID_MEMORY &&
+                Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            menu.add(0, MENU_EXPORT, 0, getString(R.string.export_presets)).setShowAsAction(
+                    MenuItem.SHOW_AS_ACTION_NEVER);
+            menu.add(0, MENU_IMPORT, 0, getString(R.string.import_presets)).setShowAsAction(
+                    MenuItem.SHOW_AS_ACTION_NEVER);
+        }
+
         return super.onCreateOptionsMenu(menu);
     }
 
@@ -213,6 +224,17 @@ public class ChromaDoze extends AppCompatActivity implements
                 mUiState.toggleLocked();
                 supportInvalidateOptionsMenu();
                 return true;
+            case MENU_EXPORT:
+            case MENU_IMPORT:
+                Fragment f = getSupportFragmentManager().findFragmentById(R.id.fragment_container);
+                if (f instanceof MemoryFragment) {
+                    if (item.getItemId() == MENU_EXPORT) {
+                        ((MemoryFragment) f).exportPresets();
+                    } else {
+                        ((MemoryFragment) f).importPresets();
+                    }
+                }
+                return true;
         }
         return false;
     }
@@ -0,0 +1,110 @@
+package net.pmarks.chromadoze;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.os.Build;
+
+// ChunkBudget decides how many full-size chunks SampleShuffler may hold.
+//
+// The upper limit comes from the device's memory class, so low-RAM phones
+// don't keep more PCM data than they can afford.  Under memory pressure,
+// onTrimMemory() lowers the limit further, and restore() raises it again
+// once the pressure has cleared.  A trim carries over to the budget for
+// the next ladder, so switching ladders doesn't undo it.
+class ChunkBudget {
+    // Spend at most 1/HEAP_FRACTION of the app's heap on PCM data.
+    private static final int HEAP_FRACTION = 8;
+
+    private final ActivityManager mActivityManager;
+    private final int mLadderChunks;
+    private final int mMaxChunks;
+    private int mChunks;
+    // Share of mMaxChunks allowed since the last trim, in quarters.
+    private int mQuarters = 4;
+
+    // The budget covers the final rung of the ladder.  previous is the
+    // budget for the old ladder, or null.
+    ChunkBudget(Context context, ChunkLadder ladder, ChunkBudget previous) {
+        mActivityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mLadderChunks = ladder.getFinalCount();
+        final int chunkBytes = ladder.getFinalSize() * AudioParams.BYTES_PER_SHORT;
+        long budgetBytes = (long) mActivityManager.getMemoryClass() * 1024 * 1024 / HEAP_FRACTION;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT &&
+                mActivityManager.isLowRamDevice()) {
+            budgetBytes /= 2;
+        }
+        mMaxChunks = clamp((int) (budgetBytes / chunkBytes));
+        mChunks = mMaxChunks;
+        if (previous != null) {
+            shrinkTo(previous.mQuarters);
+        }
+    }
+
+    private int clamp(int chunks) {
+        return Math.max(SampleGeneratorState.N_VOLUME_CHUNKS, Math.min(chunks, mLadderChunks));
+    }
+
+    public int getChunkLimit() {
+        return mChunks;
+    }
+
+    public int getMaxChunkLimit() {
+        return mMaxChunks;
+    }
+
+    public boolean isTrimmed() {
+        return mQuarters < 4;
+    }
+
+    // Returns true if the limit went down.
+    public boolean onTrimMemory(int level) {
+        final int quarters;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            quarters = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            quarters = 2;
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            quarters = 3;
+        } else {
+            // TRIM_MEMORY_UI_HIDDEN only concerns the Activity.
+            return false;
+        }
+        return shrinkTo(quarters);
+    }
+
+    // Returns true if the limit went down.
+    public boolean onLowMemory() {
+        return shrinkTo(0);
+    }
+
+    private boolean shrinkTo(int quarters) {
+        mQuarters = Math.min(mQuarters, quarters);
+        final int chunks = Math.min(mChunks, clamp(mMaxChunks * mQuarters / 4));
+        if (chunks == mChunks) {
+            return false;
+        }
+        mChunks = chunks;
+        return true;
+    }
+
+    // If the system is no longer low on memory, return to the full budget.
+    // Returns true if the limit went up.
+    public boolean restore() {
+        if (!isTrimmed()) {
+            return false;
+        }
+        ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+        mActivityManager.getMemoryInfo(info);
+        if (info.lowMemory) {
+            return false;
+        }
+        final boolean grew = mChunks < mMaxChunks;
+        mChunks = mMaxChunks;
+        mQuarters = 4;
+        return grew;
+    }
+}
@@ -0,0 +1,194 @@
+package net.pmarks.chromadoze;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Build;
+
+import org.jtransforms.dct.FloatDCT_1D;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+// ChunkLadder is the schedule SampleGenerator follows after a spectrum
+// change: a few "rungs" of chunk sizes, each with a chunk count.  The early
+// rungs are quick previews, and each one replaces the rung before it.  The
+// last rung is the final pool of chunks, which ChunkBudget may shrink.
+//
+// The text form is "SIZExCOUNT,SIZExCOUNT,...[;pace=PERCENT%xCOUNT]".
+// Pacing makes the first COUNT chunks of the last rung wait until the
+// previous chunk is PERCENT% finished playing, so scrubbing stays cheap.
+class ChunkLadder {
+    // The original hard-coded schedule.
+    public static final ChunkLadder DEFAULT = parse("8192x4,65536x20;pace=75%x2");
+    // Reach the final rung sooner, with less memory per chunk.  The pool
+    // holds as many samples as 49152x16 did, but power-of-2 chunks avoid
+    // the mixed-radix DCT, which costs about twice as much per sample.
+    public static final ChunkLadder LOW_END = parse("8192x2,32768x24;pace=75%x2");
+    // Longer final chunks, so the shuffle is less repetitive.
+    public static final ChunkLadder HIGH_END = parse("8192x4,65536x2,262144x8;pace=75%x2");
+
+    // Sanity limit on the number of chunks in one rung.
+    private static final int MAX_COUNT = 64;
+
+    private final int[] mSizes;
+    private final int[] mCounts;
+    private final int mPacePercent;
+    private final int mPaceChunks;
+
+    private ChunkLadder(int[] sizes, int[] counts, int pacePercent, int paceChunks) {
+        mSizes = sizes;
+        mCounts = counts;
+        mPacePercent = pacePercent;
+        mPaceChunks = paceChunks;
+    }
+
+    // Throws IllegalArgumentException if the text is malformed, or if any
+    // size is unusable.
+    public static ChunkLadder parse(String text) {
+        final String[] parts = text.trim().split(";");
+        int pacePercent = 0;
+        int paceChunks = 0;
+        for (int i = 1; i < parts.length; i++) {
+            final String option = parts[i].trim();
+            if (!option.startsWith("pace=")) {
+                throw new IllegalArgumentException("Unknown option: " + option);
+            }
+            final int[] pace = parsePair(option.substring("pace=".length()).replace("%", ""));
+            pacePercent = pace[0];
+            paceChunks = pace[1];
+            if (pacePercent < 0 || pacePercent > 100 || paceChunks < 0) {
+                throw new IllegalArgumentException("Invalid pace: " + option);
+            }
+        }
+
+        final ArrayList<int[]> rungs = new ArrayList<>();
+        for (String rung : parts[0].split(",")) {
+            rungs.add(parsePair(rung));
+        }
+        final int[] sizes = new int[rungs.size()];
+        final int[] counts = new int[rungs.size()];
+        for (int i = 0; i < rungs.size(); i++) {
+            sizes[i] = rungs.get(i)[0];
+            counts[i] = rungs.get(i)[1];
+            checkSize(sizes[i]);
+            if (counts[i] < 1 || counts[i] > MAX_COUNT) {
+                throw new IllegalArgumentException("Invalid count: " + counts[i]);
+            }
+        }
+        if (counts[counts.length - 1] < SampleGeneratorState.N_VOLUME_CHUNKS) {
+            throw new IllegalArgumentException(
+                    "Last rung needs at least " + SampleGeneratorState.N_VOLUME_CHUNKS + " chunks");
+        }
+        return new ChunkLadder(sizes, counts, pacePercent, paceChunks);
+    }
+
+    // Returns null instead of throwing.
+    public static ChunkLadder tryParse(String text) {
+        if (text == null) {
+            return null;
+        }
+        try {
+            return parse(text);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int[] parsePair(String pair) {
+        final String[] halves = pair.trim().split("x");
+        if (halves.length != 2) {
+            throw new IllegalArgumentException("Expected AxB: " + pair);
+        }
+        try {
+            return new int[]{Integer.parseInt(halves[0].trim()), Integer.parseInt(halves[1].trim())};
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected AxB: " + pair);
+        }
+    }
+
+    // A chunk must hold a fade-in and a fade-out, the DCT must support its
+    // size, and NoiseSource fills 8 coefficients at a time.  So 2048 is too
+    // small; use FloatDCT_1D.nextSupportedSize() to round up.
+    private static void checkSize(int size) {
+        if (size < SampleShuffler.MIN_CHUNK_SIZE || size % 8 != 0 ||
+                !FloatDCT_1D.isSupportedSize(size)) {
+            throw new IllegalArgumentException("Unsupported chunk size: " + size);
+        }
+    }
+
+    // Pick a ladder from the device's memory class and core count.
+    public static ChunkLadder forDevice(Context context) {
+        final ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final int cores = Runtime.getRuntime().availableProcessors();
+        if (cores <= 2 || am.getMemoryClass() < 64 ||
+                (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && am.isLowRamDevice())) {
+            return LOW_END;
+        }
+        if (cores >= 4 && am.getMemoryClass() >= 256) {
+            return HIGH_END;
+        }
+        return DEFAULT;
+    }
+
+    public int getRungCount() {
+        return mSizes.length;
+    }
+
+    public int getSize(int rung) {
+        return mSizes[rung];
+    }
+
+    public int getCount(int rung) {
+        return mCounts[rung];
+    }
+
+    public int getFinalSize() {
+        return mSizes[mSizes.length - 1];
+    }
+
+    public int getFinalCount() {
+        return mCounts[mCounts.length - 1];
+    }
+
+    // Total chunks in every rung except the last.
+    public int getPreviewChunks() {
+        int total = 0;
+        for (int i = 0; i < mCounts.length - 1; i++) {
+            total += mCounts[i];
+        }
+        return total;
+    }
+
+    public int getPacePercent() {
+        return mPacePercent;
+    }
+
+    public int getPaceChunks() {
+        return mPaceChunks;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mSizes.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(mSizes[i]).append('x').append(mCounts[i]);
+        }
+        if (mPaceChunks > 0) {
+            sb.append(String.format(Locale.US, ";pace=%d%%x%d", mPacePercent, mPaceChunks));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ChunkLadder && toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -0,0 +1,210 @@
+package net.pmarks.chromadoze;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import org.jtransforms.dct.FloatDCT_1D;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// DeviceProfile holds the results of a short micro-benchmark of the
+// engine's hot loops, and derives engine settings from them.
+//
+// The benchmark runs once per app version, in the background, and the
+// results live in their own SharedPreferences file so ChromaDoze's
+// pref.clear() doesn't wipe them.
+class DeviceProfile {
+    private static final String PREF_NAME = "DeviceProfile";
+    private static final String KEY_VERSION = "versionCode";
+    private static final String KEY_DCT = "dctMsPerChunk";
+    private static final String KEY_NOISE = "noiseMsPerChunk";
+    private static final String KEY_MIX = "mixNsPerFrame";
+    private static final String KEY_CORES = "cores";
+
+    // Benchmark size; matches the default final chunk.
+    private static final int BENCH_SIZE = 65536;
+
+    // A final chunk slower than this (DCT + noise) calls for small chunks.
+    private static final float SLOW_CHUNK_MS = 40f;
+    // A final chunk faster than this leaves room for large chunks.
+    private static final float FAST_CHUNK_MS = 8f;
+    // Below this, the thread handoff costs more than a parallel DCT saves.
+    private static final float MIN_PARALLEL_DCT_MS = 3f;
+    // A mixing loop slower than this gets a deeper AudioTrack buffer.
+    private static final float SLOW_MIX_NS = 50f;
+
+    // Runs to warm up the JIT, then runs to keep the fastest of.  Runs that
+    // overlap with chunk generation don't count, up to MAX_RUNS in total.
+    private static final int WARMUP_RUNS = 5;
+    private static final int TIMED_RUNS = 5;
+    private static final int MAX_RUNS = 40;
+
+    private final long mVersionCode;
+    private final float mDctMsPerChunk;
+    private final float mNoiseMsPerChunk;
+    private final float mMixNsPerFrame;
+    private final int mCores;
+
+    private DeviceProfile(long versionCode, float dctMs, float noiseMs, float mixNs, int cores) {
+        mVersionCode = versionCode;
+        mDctMsPerChunk = dctMs;
+        mNoiseMsPerChunk = noiseMs;
+        mMixNsPerFrame = mixNs;
+        mCores = cores;
+    }
+
+    // Returns null if there's no profile for the installed app version.
+    public static DeviceProfile load(Context context) {
+        final SharedPreferences pref = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        final long versionCode = getVersionCode(context);
+        if (pref.getLong(KEY_VERSION, -1) != versionCode) {
+            return null;
+        }
+        return new DeviceProfile(versionCode,
+                pref.getFloat(KEY_DCT, 0f),
+                pref.getFloat(KEY_NOISE, 0f),
+                pref.getFloat(KEY_MIX, 0f),
+                pref.getInt(KEY_CORES, 1));
+    }
+
+    public void save(Context context) {
+        context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(KEY_VERSION, mVersionCode)
+                .putFloat(KEY_DCT, mDctMsPerChunk)
+                .putFloat(KEY_NOISE, mNoiseMsPerChunk)
+                .putFloat(KEY_MIX, mMixNsPerFrame)
+                .putInt(KEY_CORES, mCores)
+                .apply();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long getVersionCode(Context context) {
+        try {
+            final PackageInfo info = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), 0);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                return info.getLongVersionCode();
+            }
+            return info.versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+
+    // Run the benchmark.  Takes a few hundred ms on a slow phone, so call
+    // this from a background thread, once the generator is idle.  Returns
+    // null if the generator kept interrupting; try again later.
+    public static DeviceProfile measure(Context context, SampleGenerator generator) {
+        final FloatDCT_1D dct = new FloatDCT_1D(BENCH_SIZE);
+        final float[] envelope = new float[BENCH_SIZE];
+        final float[] data = new float[BENCH_SIZE];
+        java.util.Arrays.fill(envelope, 1f);
+        final NoiseSource noise = new NoiseSource();
+
+        float noiseMs = Float.MAX_VALUE;
+        float dctMs = Float.MAX_VALUE;
+        int timed = 0;
+        for (int i = 0; i < MAX_RUNS && timed < TIMED_RUNS; i++) {
+            final int seq = generator.getWorkSeq();
+            long t0 = System.nanoTime();
+            noise.fill(envelope, data);
+            long t1 = System.nanoTime();
+            dct.inverse(data, false);
+            long t2 = System.nanoTime();
+            if (i >= WARMUP_RUNS && isIdleSince(generator, seq)) {
+                noiseMs = Math.min(noiseMs, (t1 - t0) / 1e6f);
+                dctMs = Math.min(dctMs, (t2 - t1) / 1e6f);
+                timed++;
+            }
+        }
+        if (timed < TIMED_RUNS) {
+            return null;
+        }
+
+        // The crossfade loop from SampleShuffler.fillBuffer(), plus AmpWave.
+        final short[] chunk0 = new short[BENCH_SIZE];
+        final short[] chunk1 = new short[BENCH_SIZE];
+        final short[] out = new short[BENCH_SIZE * AudioParams.SHORTS_PER_SAMPLE];
+        for (int i = 0; i < BENCH_SIZE; i++) {
+            chunk0[i] = (short) (data[i] * 1000);
+            chunk1[i] = (short) (data[BENCH_SIZE - 1 - i] * 1000);
+        }
+        float mixNs = Float.MAX_VALUE;
+        timed = 0;
+        for (int run = 0; run < MAX_RUNS && timed < TIMED_RUNS; run++) {
+            final int seq = generator.getWorkSeq();
+            long t0 = System.nanoTime();
+            int outPos = 0;
+            for (int i = 0, r = BENCH_SIZE - 1; i < BENCH_SIZE; i++, r--) {
+                out[outPos++] = (short) (chunk0[i] + chunk1[i]);
+                out[outPos++] = (short) (chunk0[r] + chunk1[r]);
+            }
+            for (int i = 0; i < out.length; i++) {
+                out[i] = (short) ((out[i] * 23170) >> 15);
+            }
+            long t1 = System.nanoTime();
+            if (run >= WARMUP_RUNS && isIdleSince(generator, seq)) {
+                mixNs = Math.min(mixNs, (float) (t1 - t0) / BENCH_SIZE);
+                timed++;
+            }
+        }
+        if (timed < TIMED_RUNS) {
+            return null;
+        }
+
+        return new DeviceProfile(getVersionCode(context), dctMs, noiseMs, mixNs,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    // True if the generator made no chunks since getWorkSeq() returned seq.
+    private static boolean isIdleSince(SampleGenerator generator, int seq) {
+        return (seq & 1) == 0 && generator.getWorkSeq() == seq;
+    }
+
+    // Milliseconds to make one chunk of the given size, assuming n*log(n).
+    private float estimateChunkMs(int size) {
+        final double ratio = (double) size / BENCH_SIZE;
+        final double logRatio = Math.log(size) / Math.log(BENCH_SIZE);
+        return (float) (mNoiseMsPerChunk * ratio + mDctMsPerChunk * ratio * logRatio);
+    }
+
+    // Pick a ladder by speed, within the limits of the memory heuristic.
+    public ChunkLadder chooseLadder(Context context) {
+        final ChunkLadder byMemory = ChunkLadder.forDevice(context);
+        final float chunkMs = estimateChunkMs(ChunkLadder.DEFAULT.getFinalSize());
+        if (chunkMs > SLOW_CHUNK_MS || byMemory == ChunkLadder.LOW_END) {
+            return ChunkLadder.LOW_END;
+        }
+        if (chunkMs < FAST_CHUNK_MS && byMemory == ChunkLadder.HIGH_END) {
+            return ChunkLadder.HIGH_END;
+        }
+        return ChunkLadder.DEFAULT;
+    }
+
+    // Threads for the first large DCT; see SampleGenerator.
+    public int chooseParallelThreads() {
+        if (mDctMsPerChunk < MIN_PARALLEL_DCT_MS) {
+            return 1;
+        }
+        return Math.min(4, mCores);
+    }
+
+    // AudioTrack buffer depth.  Slow mixing means the playback thread is
+    // more likely to miss a deadline.
+    public int chooseLatencyMs() {
+        return mMixNsPerFrame > SLOW_MIX_NS ? 2 * AudioParams.LATENCY_MS : AudioParams.LATENCY_MS;
+    }
+
+    public void dumpStats(JSONObject out) throws JSONException {
+        out.put("versionCode", mVersionCode);
+        out.put("dctMsPerChunk", (double) mDctMsPerChunk);
+        out.put("noiseMsPerChunk", (double) mNoiseMsPerChunk);
+        out.put("mixNsPerFrame", (double) mMixNsPerFrame);
+        out.put("cores", mCores);
+        out.put("parallelThreads", chooseParallelThreads());
+        out.put("latencyMs", chooseLatencyMs());
+    }
+}
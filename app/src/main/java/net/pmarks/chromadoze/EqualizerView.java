@@ -7,12 +7,14 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 
 import androidx.annotation.NonNull;
 
-public class EqualizerView extends android.view.View implements UIState.LockListener {
+public class EqualizerView extends android.view.View
+        implements UIState.LockListener, SpectrumAnalyzer.Listener {
     private static final int BAND_COUNT = SpectrumData.BAND_COUNT;
 
     // 3D projection offsets (multiple of mBarWidth)
@@ -43,6 +45,23 @@ public class EqualizerView extends android.view.View implements UIState.LockList
     private Path mCubeTop;
     private Path mCubeSide;
 
+    // Scratch objects for onDraw(), so drawing allocates nothing.
+    private final Path mPath = new Path();
+    private final Rect mClip = new Rect();
+
+    // Everything below the zero line only changes with the size or the
+    // lock state, so keep it in a bitmap.
+    private Bitmap mStaticLayer;
+    private boolean mStaticLayerLocked;
+
+    // The bar heights as last drawn, for finding the columns that changed.
+    private final float[] mDrawnBars = new float[BAND_COUNT];
+
+    // The spectrum that's actually playing, from SpectrumAnalyzer.
+    private final float[] mSpectrum = new float[BAND_COUNT];
+    private boolean mHasSpectrum = false;
+    private final Paint mSpectrumPaint = new Paint();
+
     public EqualizerView(Context context, AttributeSet attrs) {
         super(context, attrs);
         makeColors();
@@ -72,6 +91,8 @@ public class EqualizerView extends android.view.View implements UIState.LockList
         }
         darken(0.7f, mBaseColorL, mBaseColorM);
         darken(0.5f, mBaseColorL, mBaseColorD);
+
+        mSpectrumPaint.setColor(Color.argb(200, 255, 255, 255));
     }
 
     private void darken(float mult, Paint[] src, Paint[] dst) {
@@ -93,12 +114,22 @@ public class EqualizerView extends android.view.View implements UIState.LockList
     protected void onDraw(Canvas canvas) {
         final Phonon ph = mUiState != null ? mUiState.getPhonon() : null;
         final boolean isLocked = mUiState != null ? mUiState.getLocked() : false;
-        final Path p = new Path();
 
+        if (mStaticLayer == null || mStaticLayerLocked != isLocked) {
+            drawStaticLayer(isLocked);
+        }
+        canvas.drawBitmap(mStaticLayer, 0, mZeroLineY, null);
+
+        // In software rendering, the clip is just the invalidated columns.
+        canvas.getClipBounds(mClip);
         for (int i = 0; i < BAND_COUNT; i++) {
             float bar = ph != null ? ph.getBar(i) : .5f;
+            mDrawnBars[i] = bar;
             float startX = bandToX(i);
             float stopX = startX + mBarWidth;
+            if (stopX + mBarWidth * PROJECT_X < mClip.left || startX > mClip.right) {
+                continue;
+            }
             float startY = barToY(bar);
             float midY = startY + mBarWidth;
 
@@ -108,32 +139,101 @@ public class EqualizerView extends android.view.View implements UIState.LockList
             // Bar right (the top-left corner of this rectangle will be clipped.)
             float projX = mBarWidth * PROJECT_X;
             float projY = mBarWidth * PROJECT_Y;
-            canvas.drawRect(stopX, midY + projY,stopX + projX, mHeight, mBaseColorD[baseCol]);
+            canvas.drawRect(stopX, midY + projY, stopX + projX, mZeroLineY, mBaseColorD[baseCol]);
 
             // Bar front
-            canvas.drawRect(startX, midY, stopX, mHeight, mBaseColorL[baseCol]);
+            canvas.drawRect(startX, midY, stopX, mZeroLineY, mBaseColorL[baseCol]);
 
             if (bar > 0) {
                 // Cube right
-                mCubeSide.offset(stopX, startY, p);
-                canvas.drawPath(p, mBarColorD[i]);
+                mCubeSide.offset(stopX, startY, mPath);
+                canvas.drawPath(mPath, mBarColorD[i]);
 
                 // Cube top
-                mCubeTop.offset(startX, startY, p);
-                canvas.drawPath(p, mBarColorM[i]);
+                mCubeTop.offset(startX, startY, mPath);
+                canvas.drawPath(mPath, mBarColorM[i]);
 
                 // Cube front
                 canvas.drawRect(startX, startY, stopX, midY, mBarColorL[i]);
             } else {
                 // Bar top
-                mCubeTop.offset(startX, midY, p);
-                canvas.drawPath(p, mBaseColorM[baseCol]);
+                mCubeTop.offset(startX, midY, mPath);
+                canvas.drawPath(mPath, mBaseColorM[baseCol]);
             }
         }
 
         // Draw a ceiling line at the maximum bar height.
         final float bottomOfBar = barToY(1f);
         canvas.drawRect(mBarWidth, bottomOfBar+mBarWidth*PROJECT_Y, mWidth-mBarWidth, bottomOfBar, mBaseColorM[0]);
+
+        if (mHasSpectrum && ph != null) {
+            drawSpectrum(canvas, ph);
+        }
+    }
+
+    // Draw a tick in each column at the level that's playing.  The
+    // analyzer's levels are relative to the loudest band, so line that
+    // up with the tallest bar.
+    private void drawSpectrum(Canvas canvas, Phonon ph) {
+        float maxBar = 0f;
+        for (int i = 0; i < BAND_COUNT; i++) {
+            maxBar = Math.max(maxBar, ph.getBar(i));
+        }
+        final float thickness = Math.max(2f, mBarWidth / 8);
+        for (int i = 0; i < BAND_COUNT; i++) {
+            float startX = bandToX(i);
+            float stopX = startX + mBarWidth;
+            if (stopX < mClip.left || startX > mClip.right) {
+                continue;
+            }
+            float level = Math.max(0f, Math.min(1f, maxBar + mSpectrum[i]));
+            float y = barToY(level);
+            canvas.drawRect(startX, y, stopX, y + thickness, mSpectrumPaint);
+        }
+    }
+
+    // The part of each bar below the zero line, which every bar height
+    // covers.  This strip is drawn at (0, mZeroLineY).
+    private void drawStaticLayer(boolean isLocked) {
+        if (mStaticLayer == null) {
+            final int h = Math.max(1, (int) Math.ceil(mHeight - mZeroLineY));
+            mStaticLayer = Bitmap.createBitmap(Math.max(1, (int) mWidth), h, Bitmap.Config.ARGB_8888);
+        } else {
+            mStaticLayer.eraseColor(Color.TRANSPARENT);
+        }
+        mStaticLayerLocked = isLocked;
+        final Canvas canvas = new Canvas(mStaticLayer);
+        final float projX = mBarWidth * PROJECT_X;
+        final float bottom = mStaticLayer.getHeight();
+        for (int i = 0; i < BAND_COUNT; i++) {
+            float startX = bandToX(i);
+            float stopX = startX + mBarWidth;
+            int baseCol = i % 2 + (isLocked ? 2 : 0);
+            canvas.drawRect(stopX, 0, stopX + projX, bottom, mBaseColorD[baseCol]);
+            canvas.drawRect(startX, 0, stopX, bottom, mBaseColorL[baseCol]);
+        }
+    }
+
+    // Redraw only the columns whose bars changed.  A bar's cube also
+    // reaches into the next column, so each change dirties two columns.
+    @SuppressWarnings("deprecation")
+    private void invalidateChangedBars(Phonon ph) {
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < BAND_COUNT; i++) {
+            if (ph.getBar(i) != mDrawnBars[i]) {
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+        if (first < 0) {
+            return;
+        }
+        final int left = (int) bandToX(first);
+        final int right = (int) Math.ceil(bandToX(last + 1) + mBarWidth * (1 + PROJECT_X));
+        invalidate(left, 0, right, (int) Math.ceil(mZeroLineY));
     }
 
     private float mLastX;
@@ -173,8 +273,11 @@ public class EqualizerView extends android.view.View implements UIState.LockList
         }
         touchLine(phm, event.getX(), event.getY());
 
+        if (LatencyProbe.isEnabled()) {
+            mUiState.setTouchTime(event.getEventTime());
+        }
         if (mUiState.sendIfDirty()) {
-            invalidate();
+            invalidateChangedBars(phm);
         }
         return true;
     }
@@ -193,6 +296,7 @@ public class EqualizerView extends android.view.View implements UIState.LockList
         mZeroLineY = mDrawTopOffset + drawHeight * .9f;
         mCubeTop = projectCube(mBarWidth, true);
         mCubeSide = projectCube(mBarWidth, false);
+        mStaticLayer = null;
     }
 
     // Draw the top or right side of a cube.
@@ -290,6 +394,20 @@ public class EqualizerView extends android.view.View implements UIState.LockList
         phm.setBar(stopBand, yToBar(stopY));
     }
 
+    @Override
+    public void onSpectrum(float[] levels) {
+        if (levels == null) {
+            if (!mHasSpectrum) {
+                return;
+            }
+            mHasSpectrum = false;
+        } else {
+            System.arraycopy(levels, 0, mSpectrum, 0, BAND_COUNT);
+            mHasSpectrum = true;
+        }
+        invalidate();
+    }
+
     @Override
     public void onLockStateChange(LockEvent e) {
         // Only spend time redrawing if this is an on/off event.
@@ -1,29 +1,18 @@
 package net.pmarks.chromadoze;
 
 import android.content.Context;
-import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.Path;
-import android.graphics.PorterDuff.Mode;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.Rect;
 import android.util.AttributeSet;
-import android.util.TypedValue;
 import android.view.View;
 
-public class EqualizerViewLite extends View {
-    private static final int BAND_COUNT = SpectrumData.BAND_COUNT;
-
+// Read-only thumbnail of a Phonon, for the Memory list.  The drawing
+// happens in ThumbnailCache.
+public class EqualizerViewLite extends View implements ThumbnailCache.Callback {
     private Phonon mPhonon;
 
-    private int mWidth;
-    private int mHeight;
-    private float mBarWidth;
-
+    // What this view should show, and the bitmap once it's ready.
+    private ThumbnailCache.Key mKey = null;
     private Bitmap mBitmap = null;
 
     public EqualizerViewLite(Context context, AttributeSet attrs) {
@@ -31,81 +20,69 @@ public class EqualizerViewLite extends View {
     }
 
     public void setPhonon(Phonon ph) {
-        if (mPhonon != ph) {
-            mPhonon = ph;
-            mBitmap = null;
-            invalidate();
-        }
+        // The scratch Phonon can change without changing identity, so
+        // always compare contents.
+        mPhonon = ph;
+        updateKey();
     }
 
-    private Bitmap makeBitmap() {
-        Bitmap bmp = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(bmp);
-
-        // Draw a white line
-        Paint whitePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-        whitePaint.setColor(Color.WHITE);
-        whitePaint.setAlpha(isEnabled() ? 250 : 94);
-        whitePaint.setStyle(Paint.Style.STROKE);
-        whitePaint.setStrokeWidth(dpToPixels(3));
-
-        Path path = new Path();
-        boolean first = true;
-        for (int i = 0; i < BAND_COUNT; i++) {
-            float bar = mPhonon != null ? mPhonon.getBar(i) : .5f;
-            float x = mBarWidth * (i + 0.5f);
-            float y = barToY(bar);
-
-            if (first) {
-                first = false;
-                path.moveTo(x, y);
-            } else {
-                path.lineTo(x, y);
-            }
+    private void updateKey() {
+        final int w = getWidth();
+        final int h = getHeight();
+        final ThumbnailCache.Key key = (w > 0 && h > 0) ?
+                new ThumbnailCache.Key(mPhonon, w, h, isEnabled()) : null;
+        if (key == null ? mKey == null : key.equals(mKey)) {
+            return;
         }
-        canvas.drawPath(path, whitePaint);
+        cancelRequest();
+        mKey = key;
+        mBitmap = key != null ? ThumbnailCache.get(getContext()).request(key, this) : null;
+        invalidate();
+    }
 
-        // Overlay the spectrum bitmap to add color.
-        Bitmap colorBmp = BitmapFactory.decodeResource(getResources(), R.drawable.spectrum);
-        Rect src = new Rect(0, 0, colorBmp.getWidth(), colorBmp.getHeight());
-        Rect dst = new Rect(0, 0, bmp.getWidth(), bmp.getHeight());
-        Paint alphaPaint = new Paint();
-        alphaPaint.setXfermode(new PorterDuffXfermode(Mode.SRC_IN));
-        canvas.drawBitmap(colorBmp, src, dst, alphaPaint);
+    private void cancelRequest() {
+        if (mKey != null && mBitmap == null) {
+            ThumbnailCache.get(getContext()).cancel(mKey, this);
+        }
+    }
 
-        return bmp;
+    @Override
+    public void onThumbnailReady(ThumbnailCache.Key key, Bitmap bitmap) {
+        if (key.equals(mKey)) {
+            mBitmap = bitmap;
+            invalidate();
+        }
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
-        if (mBitmap == null) {
-            mBitmap = makeBitmap();
+        if (mBitmap != null) {
+            canvas.drawBitmap(mBitmap, 0, 0, null);
         }
-        canvas.drawBitmap(mBitmap, 0, 0, null);
     }
 
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-        mWidth = getWidth();
-        mHeight = getHeight();
-        mBarWidth = (float) mWidth / BAND_COUNT;
-        mBitmap = null;
+        updateKey();
     }
 
-    private float barToY(float barHeight) {
-        return (1f - barHeight) * mHeight;
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        updateKey();
     }
 
-    private float dpToPixels(float dp) {
-        Resources r = getResources();
-        return TypedValue.applyDimension(
-                TypedValue.COMPLEX_UNIT_DIP, dp, r.getDisplayMetrics());
+    @Override
+    protected void onDetachedFromWindow() {
+        cancelRequest();
+        mKey = null;
+        mBitmap = null;
+        super.onDetachedFromWindow();
     }
 
     @Override
     public void setEnabled(boolean enabled) {
         super.setEnabled(enabled);
-        mBitmap = null;
-        invalidate();
+        updateKey();
     }
 }
@@ -0,0 +1,145 @@
+package net.pmarks.chromadoze;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// GenerationScheduler decides how long SampleGenerator rests between
+// chunks.
+//
+// While the user is changing the sound, or while the global volume is still
+// being chosen, chunks are made as fast as the ladder's pace rule allows.
+// After that, the rest of the pool is background work:
+// - Generator CPU time is capped at BACKGROUND_DUTY_PERCENT of wall time.
+// - Generation stays only AHEAD_CHUNKS never-played chunks ahead of
+//   playback, because racing further ahead doesn't make the sound any
+//   better.  The measured playback rate says how long those chunks will
+//   last, so the generator sleeps until the next one is almost needed,
+//   and skips the duty cap when the reserve would run dry first.
+// The rolling refresh has its own, much lower, duty cycle.
+//
+// All methods except dumpStats() must be called from the generator thread.
+class GenerationScheduler {
+    // How long a spectrum change counts as "interacting".
+    private static final long INTERACTIVE_WINDOW_MS = 5 * 1000;
+
+    // Cap for filling the pool once the user is idle.
+    private static final int BACKGROUND_DUTY_PERCENT = 25;
+
+    // Unplayed chunks to keep in reserve while throttled.
+    private static final int AHEAD_CHUNKS = 2;
+
+    // Rolling refresh: replace one chunk at most every REFRESH_MIN_INTERVAL_MS,
+    // and spend at most REFRESH_DUTY_PERCENT of wall time doing it.
+    public static final long REFRESH_MIN_INTERVAL_MS = 30 * 1000;
+    private static final int REFRESH_DUTY_PERCENT = 1;
+
+    private final int mSampleRate;
+    private long mLastInteractionMs = Long.MIN_VALUE / 2;
+
+    // Statistics; written by the thread, read by dumpStats().
+    private volatile boolean mStatInteractive = false;
+    private volatile long mStatLastCpuMs = 0;
+    private volatile long mStatLastWaitMs = 0;
+    private volatile long mStatThrottledMs = 0;
+    private volatile long mStatPlaybackFramesPerSec = 0;
+    private volatile long mStatRunwayMs = -1;
+
+    // For measuring the playback rate.
+    private long mLastPlayedFrames = -1;
+    private long mLastPlayedSampleMs = 0;
+
+    GenerationScheduler(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    // The user changed the spectrum.
+    public void onInteraction(long nowMs) {
+        mLastInteractionMs = nowMs;
+    }
+
+    public boolean isInteractive(long nowMs) {
+        return nowMs - mLastInteractionMs < INTERACTIVE_WINDOW_MS;
+    }
+
+    // Call after handing a batch of chunks to SampleShuffler.
+    // elapsedMs/cpuMs cover the batch; neverPlayed is the number of chunks
+    // that playback hasn't reached yet.
+    public long getWaitMs(SampleGeneratorState state, long elapsedMs, long cpuMs,
+                          int neverPlayed, long nowMs) {
+        final boolean interactive = isInteractive(nowMs);
+        mStatInteractive = interactive;
+        mStatLastCpuMs = cpuMs;
+
+        // Pace rule from the ladder: for the first few final chunks, the
+        // next chunk should be ready when this one is mostly played.
+        final long paceMs = state.getSleepTargetMs(mSampleRate);
+        long waitMs = Math.max(0, Math.min(paceMs - elapsedMs, paceMs));
+
+        if (!interactive && !state.done() &&
+                state.getStage() == SampleGeneratorState.S_LARGE_NOCLIP) {
+            long throttleMs = cpuMs * (100 - BACKGROUND_DUTY_PERCENT) / BACKGROUND_DUTY_PERCENT;
+            final long playMs = chunkPlayMs(state.getChunkSize());
+            final long runwayMs = playMs < 0 ? -1 : neverPlayed * playMs;
+            mStatRunwayMs = runwayMs;
+            if (neverPlayed >= AHEAD_CHUNKS) {
+                if (runwayMs < 0) {
+                    // Playback isn't moving.  Check back in about half a chunk.
+                    throttleMs = Math.max(throttleMs, chunkMs(state.getChunkSize()) / 2);
+                } else {
+                    // Sleep until one unplayed chunk is left, minus the time
+                    // it takes to make the next one.
+                    throttleMs = Math.max(throttleMs, runwayMs - playMs - elapsedMs);
+                }
+            } else if (runwayMs >= 0) {
+                // The reserve is low.  Don't let the duty cap starve it.
+                throttleMs = Math.min(throttleMs, Math.max(0, runwayMs - elapsedMs));
+            }
+            if (throttleMs > waitMs) {
+                mStatThrottledMs += throttleMs - waitMs;
+                waitMs = throttleMs;
+            }
+        }
+        mStatLastWaitMs = waitMs;
+        return waitMs;
+    }
+
+    // Keep the refresh duty cycle at REFRESH_DUTY_PERCENT of wall time.
+    public long getRefreshWaitMs(long elapsedMs) {
+        return Math.max(REFRESH_MIN_INTERVAL_MS, elapsedMs * (100 / REFRESH_DUTY_PERCENT - 1));
+    }
+
+    // Track how fast playback is consuming audio.
+    public void samplePlayback(long playedFrames, long nowMs) {
+        if (mLastPlayedFrames >= 0 && nowMs > mLastPlayedSampleMs &&
+                playedFrames >= mLastPlayedFrames) {
+            mStatPlaybackFramesPerSec =
+                    (playedFrames - mLastPlayedFrames) * 1000 / (nowMs - mLastPlayedSampleMs);
+        }
+        mLastPlayedFrames = playedFrames;
+        mLastPlayedSampleMs = nowMs;
+    }
+
+    private long chunkMs(int chunkSize) {
+        return 1000L * chunkSize / mSampleRate;
+    }
+
+    // How long playback takes to get through one chunk at the measured
+    // rate, or -1 if it isn't playing.
+    private long chunkPlayMs(int chunkSize) {
+        final long framesPerSec = mStatPlaybackFramesPerSec;
+        if (framesPerSec <= 0) {
+            return -1;
+        }
+        return 1000L * chunkSize / framesPerSec;
+    }
+
+    public void dumpStats(JSONObject out) throws JSONException {
+        out.put("interactive", mStatInteractive);
+        out.put("backgroundDutyPercent", BACKGROUND_DUTY_PERCENT);
+        out.put("lastCpuMs", mStatLastCpuMs);
+        out.put("lastWaitMs", mStatLastWaitMs);
+        out.put("throttledMs", mStatThrottledMs);
+        out.put("playbackFramesPerSec", mStatPlaybackFramesPerSec);
+        out.put("runwayMs", mStatRunwayMs);
+    }
+}
@@ -0,0 +1,158 @@
+package net.pmarks.chromadoze;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+// LatencyProbe measures how long a touch in EqualizerView takes to
+// reach the speaker.
+//
+// When enabled, UIState stamps each spectrum Intent with the MotionEvent
+// time.  A Sample follows that spectrum through the service, the
+// generator, and the shuffler, collecting a timestamp at each hop.  The
+// playback thread finishes it when the AudioTrack reports that the first
+// new frame has played.  A spectrum that's replaced before it plays is
+// counted as superseded, and doesn't contribute a measurement.
+//
+// All times are SystemClock.uptimeMillis(), like MotionEvent.getEventTime().
+class LatencyProbe {
+    // Keep this many recent measurements for the percentiles.
+    private static final int RING_SIZE = 128;
+
+    // The hops, in order.  Each stage is the time since the previous one.
+    private static final String[] STAGE_NAMES = {
+            "intent", "wake", "idct", "exchange", "write", "played"};
+    private static final int STAGE_COUNT = STAGE_NAMES.length;
+
+    private static volatile boolean sEnabled = false;
+
+    // Guarded by LatencyProbe.class.
+    private static final long[][] sRing = new long[STAGE_COUNT + 1][RING_SIZE];
+    private static int sRingNext = 0;
+    private static int sRingCount = 0;
+    private static int sSuperseded = 0;
+    private static Sample sLatest = null;
+
+    private LatencyProbe() {
+    }
+
+    // One spectrum update on its way to the speaker.  Each field is set
+    // once, by the thread that owns that hop, and read by the next one
+    // after a synchronized hand-off.
+    static class Sample {
+        final long mTouchMs;
+        final long mIntentMs;
+        long mWakeMs;
+        long mIdctMs;
+        long mExchangeMs;
+        long mWriteMs;
+        // The first new frame, counted from AudioTrack.play().
+        long mFrame;
+
+        private Sample(long touchMs, long intentMs) {
+            mTouchMs = touchMs;
+            mIntentMs = intentMs;
+        }
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static synchronized void clear() {
+        sRingNext = 0;
+        sRingCount = 0;
+        sSuperseded = 0;
+    }
+
+    // Called when the service receives a spectrum.  Returns null unless
+    // the probe is on and the Intent came from a touch.
+    public static Sample onIntent(long touchMs) {
+        if (!sEnabled || touchMs <= 0) {
+            return null;
+        }
+        final Sample s = new Sample(touchMs, SystemClock.uptimeMillis());
+        synchronized (LatencyProbe.class) {
+            if (sLatest != null) {
+                sSuperseded++;
+            }
+            sLatest = s;
+        }
+        return s;
+    }
+
+    // Called by the playback thread once the first new frame has played.
+    public static synchronized void onPlayed(Sample s, long playedMs) {
+        if (s != sLatest) {
+            // Already counted as superseded.
+            return;
+        }
+        sLatest = null;
+        long prev = s.mTouchMs;
+        prev = putStage(0, s.mIntentMs, prev);
+        prev = putStage(1, s.mWakeMs, prev);
+        prev = putStage(2, s.mIdctMs, prev);
+        prev = putStage(3, s.mExchangeMs, prev);
+        prev = putStage(4, s.mWriteMs, prev);
+        putStage(5, playedMs, prev);
+        putStage(STAGE_COUNT, playedMs, s.mTouchMs);
+        sRingNext = (sRingNext + 1) % RING_SIZE;
+        if (sRingCount < RING_SIZE) {
+            sRingCount++;
+        }
+    }
+
+    // Requires the lock.  Returns timeMs, for chaining.
+    private static long putStage(int stage, long timeMs, long prevMs) {
+        sRing[stage][sRingNext] = timeMs - prevMs;
+        return timeMs;
+    }
+
+    // Returns {count, p50, p90, max} of the total latency, in ms.
+    public static synchronized long[] getTotalPercentiles() {
+        final long[] sorted = sortedStage(STAGE_COUNT);
+        if (sorted.length == 0) {
+            return new long[]{0, 0, 0, 0};
+        }
+        return new long[]{sorted.length, percentile(sorted, 50), percentile(sorted, 90),
+                sorted[sorted.length - 1]};
+    }
+
+    public static synchronized void dumpStats(JSONObject out) throws JSONException {
+        out.put("enabled", sEnabled);
+        out.put("count", sRingCount);
+        out.put("superseded", sSuperseded);
+        for (int i = 0; i <= STAGE_COUNT; i++) {
+            final long[] sorted = sortedStage(i);
+            if (sorted.length == 0) {
+                continue;
+            }
+            final JSONObject stage = new JSONObject();
+            stage.put("p50", percentile(sorted, 50));
+            stage.put("p90", percentile(sorted, 90));
+            stage.put("p99", percentile(sorted, 99));
+            stage.put("max", sorted[sorted.length - 1]);
+            out.put(i < STAGE_COUNT ? STAGE_NAMES[i] + "Ms" : "totalMs", stage);
+        }
+    }
+
+    // Requires the lock.
+    private static long[] sortedStage(int stage) {
+        final long[] out = Arrays.copyOf(sRing[stage], sRingCount);
+        Arrays.sort(out);
+        return out;
+    }
+
+    // Nearest-rank percentile of a sorted, non-empty array.
+    private static long percentile(long[] sorted, int p) {
+        final int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
@@ -4,6 +4,8 @@ import android.Manifest;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -23,13 +25,39 @@ import java.util.Date;
 
 public class MainFragment extends Fragment implements NoiseService.PercentListener {
     private EqualizerView mEqualizer;
+    private SpectrumAnalyzer mAnalyzer;
     private TextView mStateText;
     private ProgressBar mPercentBar;
     private Button mNotificationButton;
+    private TextView mLatencyText;
     private UIState mUiState;
     private boolean mServiceActive;
     private ActivityResultLauncher<String> mRequestPermission;
 
+    // While LatencyProbe is on, refresh its summary this often.  When it's
+    // off, don't wake up at all.
+    private static final long LATENCY_POLL_MS = 1000;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mLatencyPolling = false;
+    private final Runnable mLatencyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!LatencyProbe.isEnabled()) {
+                mLatencyText.setVisibility(View.GONE);
+                mLatencyPolling = false;
+                return;
+            }
+            final long[] p = LatencyProbe.getTotalPercentiles();
+            if (p[0] > 0) {
+                mLatencyText.setText(getString(R.string.latency_summary, p[1], p[2], p[3], p[0]));
+                mLatencyText.setVisibility(View.VISIBLE);
+            } else {
+                mLatencyText.setVisibility(View.GONE);
+            }
+            mHandler.postDelayed(this, LATENCY_POLL_MS);
+        }
+    };
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -54,6 +82,7 @@ public class MainFragment extends Fragment implements NoiseService.PercentListen
         mStateText = v.findViewById(R.id.StateText);
         mPercentBar = v.findViewById(R.id.PercentBar);
         mNotificationButton = v.findViewById(R.id.EnableNotificationsButton);
+        mLatencyText = v.findViewById(R.id.LatencyText);
         return v;
     }
 
@@ -62,6 +91,7 @@ public class MainFragment extends Fragment implements NoiseService.PercentListen
         super.onViewCreated(view, savedInstanceState);
         mUiState = ((ChromaDoze) requireActivity()).getUIState();
         mEqualizer.setUiState(mUiState);
+        mAnalyzer = new SpectrumAnalyzer(mEqualizer);
 
         mNotificationButton.setOnClickListener(v -> {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
@@ -76,6 +106,9 @@ public class MainFragment extends Fragment implements NoiseService.PercentListen
         // Start receiving progress events.
         NoiseService.addPercentListener(this);
         mUiState.addLockListener(mEqualizer);
+        // Only analyze the playing audio while someone can see it.
+        mAnalyzer.start();
+        updateLatencyPolling();
         mNotificationButton.setVisibility(hasNotificationPermission() ? View.GONE : View.VISIBLE);
         ((ChromaDoze) requireActivity()).setFragmentId(FragmentIndex.ID_CHROMA_DOZE);
     }
@@ -96,11 +129,25 @@ public class MainFragment extends Fragment implements NoiseService.PercentListen
         // Stop receiving progress events.
         NoiseService.removePercentListener(this);
         mUiState.removeLockListener(mEqualizer);
+        mAnalyzer.stop();
+        mHandler.removeCallbacks(mLatencyRunnable);
+        mLatencyPolling = false;
+        mEqualizer.onSpectrum(null);
+    }
+
+    // NoiseService turns LatencyProbe on or off, so check again whenever
+    // the service reports in.
+    private void updateLatencyPolling() {
+        if (!mLatencyPolling) {
+            mLatencyPolling = true;
+            mLatencyRunnable.run();
+        }
     }
 
     @Override
     public void onNoiseServicePercentChange(int percent, Date stopTimestamp, int stopReasonId) {
         mServiceActive = (percent >= 0);
+        updateLatencyPolling();
         boolean showGenerating = false;
         boolean showStopReason = false;
         if (percent < 0) {
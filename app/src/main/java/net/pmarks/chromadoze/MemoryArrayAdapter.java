@@ -13,10 +13,34 @@ public class MemoryArrayAdapter extends ArrayAdapter<Phonon> {
 
     enum Saved {YES, NO, NONE}
 
+    // Blank rows shown while the library loads.
+    private int mPlaceholders = 0;
+
     public MemoryArrayAdapter(Context context, List<Phonon> objects) {
         super(context, 0, objects);
     }
 
+    public void setPlaceholderCount(int count) {
+        mPlaceholders = count;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return super.getCount() + mPlaceholders;
+    }
+
+    // Returns null for a placeholder.
+    @Override
+    public Phonon getItem(int position) {
+        return position < super.getCount() ? super.getItem(position) : null;
+    }
+
+    @Override
+    public boolean isEnabled(int position) {
+        return position < super.getCount();
+    }
+
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
         LayoutInflater inflater = (LayoutInflater)
@@ -37,7 +61,7 @@ public class MemoryArrayAdapter extends ArrayAdapter<Phonon> {
 
     public void initListItem(View view, Phonon ph, Saved saved) {
         StringBuilder buf = new StringBuilder();
-        if (ph.getMinVol() != 100) {
+        if (ph != null && ph.getMinVol() != 100) {
             buf.append(ph.getMinVolText());
             buf.append('\n');
             buf.append(ph.getPeriodText());
@@ -1,13 +1,19 @@
 package net.pmarks.chromadoze;
 
+import android.net.Uri;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnLongClickListener;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.ProgressBar;
+import android.widget.TextView;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.fragment.app.ListFragment;
 
 import com.mobeta.android.dslv.DragSortListView;
@@ -16,10 +22,16 @@ import com.mobeta.android.dslv.DragSortListView.RemoveListener;
 
 import net.pmarks.chromadoze.MemoryArrayAdapter.Saved;
 
+import java.util.List;
+
 public class MemoryFragment extends ListFragment implements
-        OnItemClickListener, DropListener, RemoveListener {
+        OnItemClickListener, DropListener, RemoveListener, UIState.LibraryListener,
+        PresetTransfer.Listener {
 
     private View mHeaderView;
+    private View mTransferRow;
+    private TextView mTransferText;
+    private ProgressBar mTransferProgress;
     private DragSortListView mDslv;
     private UIState mUiState;
 
@@ -28,6 +40,30 @@ public class MemoryFragment extends ListFragment implements
     // This is basically the cached result of findScratchCopy().
     private final TrackedPosition mScratchPos = new TrackedPosition();
 
+    private ActivityResultLauncher<String> mExportLauncher;
+    private ActivityResultLauncher<String[]> mImportLauncher;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mExportLauncher = registerForActivityResult(
+                new ActivityResultContracts.CreateDocument(PresetTransfer.MIME_TYPE), uri -> {
+                    if (uri != null && PresetTransfer.getActive() == null && mUiState != null) {
+                        PresetTransfer.startExport(getActivity(), uri,
+                                mUiState.mSavedPhonons, this);
+                        showTransfer(getString(R.string.exporting_presets,
+                                0, mUiState.mSavedPhonons.size()), 0, 1);
+                    }
+                });
+        mImportLauncher = registerForActivityResult(
+                new ActivityResultContracts.OpenDocument(), uri -> {
+                    if (uri != null && PresetTransfer.getActive() == null && mUiState != null) {
+                        PresetTransfer.startImport(getActivity(), uri, this);
+                        showTransfer(getString(R.string.importing_presets, 0), -1, -1);
+                    }
+                });
+    }
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
                              Bundle savedInstanceState) {
@@ -40,20 +76,48 @@ public class MemoryFragment extends ListFragment implements
             @Override
             public void onClick(View arg0) {
                 // Clicked the "Save" button.
+                if (!mUiState.isLibraryLoaded()) {
+                    return;
+                }
+                final int copy = mUiState.findSavedCopy(mUiState.mScratchPhonon);
+                if (copy != -1) {
+                    // Already saved.  Jump there instead of adding another.
+                    setScratchPosAndDraw(copy);
+                    jumpToSaved(copy);
+                    return;
+                }
                 final Phonon ph = mUiState.mScratchPhonon.makeMutableCopy();
-                mAdapter.insert(ph, 0);
+                mUiState.insertSavedPhonon(0, ph);
+                mAdapter.notifyDataSetChanged();
                 // Gray out the header row.
                 setScratchPosAndDraw(findScratchCopy());
                 // Fake-click the header row.
                 onItemClick(null, null, 0, 0);
             }
         });
+        button.setOnLongClickListener(new OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View arg0) {
+                // Long-pressed the "Save" button: find the most similar preset.
+                if (!mUiState.isLibraryLoaded()) {
+                    return false;
+                }
+                final int similar = mUiState.findSimilarSaved(mUiState.getPhonon());
+                if (similar == -1) {
+                    return false;
+                }
+                jumpToSaved(similar);
+                return true;
+            }
+        });
         mHeaderView = v;
         mDslv.addHeaderView(mHeaderView, null, true);
 
-        mDslv.addHeaderView(
-                inflater.inflate(R.layout.memory_list_divider, null), null,
-                false);
+        View divider = inflater.inflate(R.layout.memory_list_divider, null);
+        mTransferRow = divider.findViewById(R.id.transfer_row);
+        mTransferText = divider.findViewById(R.id.transfer_text);
+        mTransferProgress = divider.findViewById(R.id.transfer_progress);
+        mDslv.addHeaderView(divider, null, false);
 
         return mDslv;
     }
@@ -69,6 +133,48 @@ public class MemoryFragment extends ListFragment implements
         mDslv.setOnItemClickListener(this);
         mDslv.setDropListener(this);
         mDslv.setRemoveListener(this);
+
+        // Show placeholders, and don't allow edits, until the library loads.
+        if (!mUiState.isLibraryLoaded()) {
+            mAdapter.setPlaceholderCount(mUiState.getSavedCountHint());
+            mDslv.setDragEnabled(false);
+        }
+        mUiState.addLibraryListener(this);
+        if (mUiState.isLibraryLoaded()) {
+            attachTransfer();
+        }
+    }
+
+    // Pick up a transfer started by an earlier MemoryFragment.
+    private void attachTransfer() {
+        final PresetTransfer transfer = PresetTransfer.getActive();
+        if (transfer != null) {
+            transfer.setListener(this);
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        final PresetTransfer transfer = PresetTransfer.getActive();
+        if (transfer != null) {
+            // Keep going through a rotation, but not after the user leaves.
+            // Meanwhile, an import waits for the next MemoryFragment.
+            if (getActivity().isFinishing()) {
+                transfer.cancel();
+            }
+            transfer.setListener(null);
+        }
+        mUiState.removeLibraryListener(this);
+        super.onDestroyView();
+    }
+
+    @Override
+    public void onLibraryLoaded() {
+        mAdapter.setPlaceholderCount(0);
+        mDslv.setDragEnabled(true);
+        setScratchPosAndDraw(findScratchCopy());
+        syncActiveItem(false);
+        attachTransfer();
     }
 
     @Override
@@ -80,20 +186,72 @@ public class MemoryFragment extends ListFragment implements
         syncActiveItem(false);
     }
 
+    // Called from the options menu.
+    public void exportPresets() {
+        if (PresetTransfer.getActive() != null || !mUiState.isLibraryLoaded()) {
+            return;
+        }
+        mExportLauncher.launch("chromadoze-presets.jsonl");
+    }
+
+    public void importPresets() {
+        if (PresetTransfer.getActive() != null || !mUiState.isLibraryLoaded()) {
+            return;
+        }
+        // Some file managers don't know about .jsonl, so allow anything.
+        mImportLauncher.launch(new String[]{PresetTransfer.MIME_TYPE,
+                "application/json", "text/plain", "application/octet-stream"});
+    }
+
+    @Override
+    public void onTransferProgress(int done, int total) {
+        if (total < 0) {
+            showTransfer(getString(R.string.importing_presets, done), -1, -1);
+        } else {
+            showTransfer(getString(R.string.exporting_presets, done, total), done, total);
+        }
+    }
+
+    @Override
+    public int onImportBatch(List<PhononMutable> batch) {
+        final int added = mUiState.appendSavedPhonons(batch);
+        if (added > 0) {
+            mAdapter.notifyDataSetChanged();
+            // An imported copy of the scratch grays out the header row.
+            setScratchPosAndDraw(findScratchCopy());
+        }
+        return added;
+    }
+
+    @Override
+    public void onTransferFinished() {
+        mTransferRow.setVisibility(View.GONE);
+    }
+
+    // A negative total means the progress is indeterminate.
+    private void showTransfer(String text, int done, int total) {
+        mTransferRow.setVisibility(View.VISIBLE);
+        mTransferText.setText(text);
+        mTransferProgress.setIndeterminate(total < 0);
+        if (total >= 0) {
+            mTransferProgress.setMax(Math.max(total, 1));
+            mTransferProgress.setProgress(done);
+        }
+    }
+
     @Override
     public void drop(int from, int to) {
         if (from != to) {
-            Phonon item = mAdapter.getItem(from);
-            mAdapter.remove(item);
-            mAdapter.insert(item, to);
+            mUiState.moveSavedPhonon(from, to);
+            mAdapter.notifyDataSetChanged();
             moveTrackedPositions(from, to, null);
         }
     }
 
     @Override
     public void remove(int which) {
-        Phonon item = mAdapter.getItem(which);
-        mAdapter.remove(item);
+        Phonon item = mUiState.removeSavedPhonon(which);
+        mAdapter.notifyDataSetChanged();
         moveTrackedPositions(which, TrackedPosition.NOWHERE, item);
     }
 
@@ -128,6 +286,10 @@ public class MemoryFragment extends ListFragment implements
     @Override
     public void onItemClick(AdapterView<?> parent, View view, int position,
                             long id) {
+        if (position != 0 && !mUiState.isLibraryLoaded()) {
+            // Placeholder.
+            return;
+        }
         mUiState.setActivePhonon(position == 0 ?
                 -1 : position - mDslv.getHeaderViewsCount());
 
@@ -149,13 +311,13 @@ public class MemoryFragment extends ListFragment implements
     // If the scratch Phonon is unique, return -1.  Otherwise, return the
     // copy's index within mArray.
     private int findScratchCopy() {
-        final PhononMutable scratch = mUiState.mScratchPhonon;
-        for (int i = 0; i < mUiState.mSavedPhonons.size(); i++) {
-            if (mUiState.mSavedPhonons.get(i).fastEquals(scratch)) {
-                return i;
-            }
-        }
-        return -1;
+        return mUiState.findSavedCopy(mUiState.mScratchPhonon);
+    }
+
+    // Play a saved Phonon, and scroll to it.
+    private void jumpToSaved(int index) {
+        onItemClick(null, null, index + mDslv.getHeaderViewsCount(), 0);
+        syncActiveItem(true);
     }
 
     private void syncActiveItem(boolean scrollThere) {
@@ -5,6 +5,7 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.ServiceInfo;
 import android.os.Build;
 import android.os.Handler;
@@ -13,6 +14,8 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.Parcelable;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.view.View;
@@ -24,8 +27,14 @@ import androidx.core.app.NotificationChannelCompat;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 
 public class NoiseService extends Service {
     private static final int PERCENT_MSG = 1;
@@ -40,6 +49,7 @@ public class NoiseService extends Service {
     private static Date sStopTimestamp = null;
     private static int sStopReasonId = 0;
 
+    private AudioParams mParams;
     private SampleShuffler mSampleShuffler;
     private SampleGenerator mSampleGenerator;
     private AudioFocusHelper mAudioFocusHelper;
@@ -53,6 +63,77 @@ public class NoiseService extends Service {
 
     private Handler mPercentHandler;
 
+    // Check thermal state and battery saver this often.
+    private static final long POWER_POLL_MS = 60 * 1000;
+    private PowerPolicy mPowerPolicy;
+    private final Runnable mPowerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPowerPolicy.update(SystemClock.elapsedRealtime());
+            applyPowerPolicy();
+            mRegrowHandler.postDelayed(this, POWER_POLL_MS);
+        }
+    };
+
+    // After a memory trim, try to regrow the chunk pool this often.
+    private static final long REGROW_DELAY_MS = 5 * 60 * 1000;
+    private ChunkLadder mLadder;
+    // True if the intent picked the ladder, so DeviceProfile shouldn't.
+    private boolean mLadderOverride = false;
+    private ChunkBudget mChunkBudget;
+    private Handler mRegrowHandler;
+    private final Runnable mRegrowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mChunkBudget.restore()) {
+                mSampleGenerator.setChunkLimit(mChunkBudget.getChunkLimit());
+            } else if (mChunkBudget.isTrimmed()) {
+                mRegrowHandler.postDelayed(this, REGROW_DELAY_MS);
+            }
+        }
+    };
+
+    // Benchmark results for this app version, or null until measured.
+    // Wait until every chunk exists, so the benchmark neither slows down
+    // the first sound nor competes with the generator for the CPU.
+    private static final long PROFILE_DELAY_MS = 10 * 1000;
+    private DeviceProfile mProfile;
+    private boolean mDestroyed = false;
+    private final Runnable mProfileRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mSampleGenerator.isPoolComplete()) {
+                mRegrowHandler.postDelayed(this, PROFILE_DELAY_MS);
+                return;
+            }
+            new Thread("DeviceProfile") {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                    final DeviceProfile profile =
+                            DeviceProfile.measure(NoiseService.this, mSampleGenerator);
+                    if (profile != null) {
+                        profile.save(NoiseService.this);
+                    }
+                    mRegrowHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mDestroyed) {
+                                return;
+                            }
+                            if (profile != null) {
+                                applyProfile(profile);
+                            } else {
+                                // A refresh or new spectrum got in the way.
+                                mRegrowHandler.postDelayed(mProfileRunnable, PROFILE_DELAY_MS);
+                            }
+                        }
+                    });
+                }
+            }.start();
+        }
+    };
+
     private static class PercentHandler extends Handler {
 
         PercentHandler() {
@@ -71,11 +152,27 @@ public class NoiseService extends Service {
     @Override
     @SuppressWarnings("WakelockTimeout")
     public void onCreate() {
+        // Debuggable builds record per-stage timings for systrace and dumpsys,
+        // and touch-to-audible latency.
+        final boolean debuggable =
+                (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+        StageTracer.setEnabled(debuggable);
+        LatencyProbe.setEnabled(debuggable);
+
         // Set up a message handler in the main thread.
         mPercentHandler = new PercentHandler();
-        AudioParams params = new AudioParams();
-        mSampleShuffler = new SampleShuffler(params);
-        mSampleGenerator = new SampleGenerator(this, params, mSampleShuffler);
+        mProfile = DeviceProfile.load(this);
+        mParams = mProfile != null ? new AudioParams(mProfile.chooseLatencyMs()) : new AudioParams();
+        mSampleShuffler = new SampleShuffler(mParams);
+        mSampleGenerator = new SampleGenerator(this, mParams, mSampleShuffler);
+        mRegrowHandler = new Handler(Looper.getMainLooper());
+        setLadder(chooseLadder());
+        mPowerPolicy = new PowerPolicy(new PowerPolicy.SystemStatusSource(this));
+        mPowerRunnable.run();
+        if (mProfile == null) {
+            // First run, or the app was updated.
+            mRegrowHandler.postDelayed(mProfileRunnable, PROFILE_DELAY_MS);
+        }
         PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
         mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "chromadoze:NoiseService");
         mWakeLock.acquire();
@@ -166,6 +263,8 @@ public class NoiseService extends Service {
         }
 
         SpectrumData spectrum = getParcelableExtraCompat(intent, "spectrum", SpectrumData.class);
+        final LatencyProbe.Sample latency =
+                LatencyProbe.onIntent(intent.getLongExtra("touchUptimeMs", 0));
 
         // Synchronous updates.
         mSampleShuffler.setAmpWave(
@@ -189,7 +288,24 @@ public class NoiseService extends Service {
         }
 
         // Background updates.
-        mSampleGenerator.updateSpectrum(spectrum);
+        mSampleGenerator.setRefreshEnabled(
+                intent.getBooleanExtra("refreshChunks", false),
+                intent.getBooleanExtra("refreshBatteryCheck", true));
+        mSampleGenerator.setSmoothBandEdges(intent.getBooleanExtra("smoothBandEdges", false));
+        // Override the anti-repeat distance, e.g. for testing:
+        // --ei repeatDistance 3
+        mSampleShuffler.setMinRepeatDistance(intent.getIntExtra("repeatDistance", -1));
+        // Override the per-device chunk schedule, e.g. for testing:
+        // --es chunkLadder "8192x2,65536x4,262144x8"
+        ChunkLadder ladder = ChunkLadder.tryParse(intent.getStringExtra("chunkLadder"));
+        mLadderOverride = ladder != null;
+        if (ladder == null) {
+            ladder = chooseLadder();
+        }
+        if (!ladder.equals(mLadder)) {
+            setLadder(ladder);
+        }
+        mSampleGenerator.updateSpectrum(spectrum, latency);
 
         // If the kernel decides to kill this process, let Android restart it
         // using the most-recent spectrum.  It's important that we call
@@ -211,6 +327,10 @@ public class NoiseService extends Service {
         mSampleShuffler.stopThread();
 
         mPercentHandler.removeMessages(PERCENT_MSG);
+        mRegrowHandler.removeCallbacks(mRegrowRunnable);
+        mRegrowHandler.removeCallbacks(mProfileRunnable);
+        mRegrowHandler.removeCallbacks(mPowerRunnable);
+        mDestroyed = true;
         updatePercent(-1);
         mAudioFocusHelper.setActive(false);
 
@@ -227,12 +347,164 @@ public class NoiseService extends Service {
         mWakeLock.release();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (mChunkBudget.onTrimMemory(level)) {
+            applyTrimmedBudget();
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (mChunkBudget.onLowMemory()) {
+            applyTrimmedBudget();
+        }
+    }
+
+    // Returns false if optional background work should wait; see
+    // PowerPolicy.  Safe to call from any thread.  This uses the readings
+    // from the last mPowerRunnable poll, so it never calls into the system.
+    public boolean isRefreshAllowed(boolean checkBattery) {
+        return mPowerPolicy.isRefreshAllowed(checkBattery);
+    }
+
+    // Push the current power state to the engine.
+    private void applyPowerPolicy() {
+        final int threads = mProfile != null ? mProfile.chooseParallelThreads() :
+                Math.min(4, Runtime.getRuntime().availableProcessors());
+        mSampleGenerator.setParallelThreads(mPowerPolicy.getParallelThreads(threads));
+        mSampleShuffler.setLargeBuffer(mPowerPolicy.useLargeBuffer());
+    }
+
+    private ChunkLadder chooseLadder() {
+        return mProfile != null ? mProfile.chooseLadder(this) : ChunkLadder.forDevice(this);
+    }
+
+    // Use fresh benchmark results.  The AudioTrack buffer keeps its size
+    // until the service restarts.
+    private void applyProfile(DeviceProfile profile) {
+        mProfile = profile;
+        applyPowerPolicy();
+        final ChunkLadder ladder = chooseLadder();
+        if (!mLadderOverride && !ladder.equals(mLadder)) {
+            setLadder(ladder);
+        }
+    }
+
+    // The memory budget depends on the final chunk size, so start it over,
+    // keeping any trim.  A pending mRegrowRunnable picks up the new budget.
+    private void setLadder(ChunkLadder ladder) {
+        mLadder = ladder;
+        mChunkBudget = new ChunkBudget(this, ladder, mChunkBudget);
+        mSampleGenerator.setLadder(ladder);
+        mSampleGenerator.setChunkLimit(mChunkBudget.getChunkLimit());
+    }
+
+    // Drop chunks now, and try to get them back once the pressure clears.
+    private void applyTrimmedBudget() {
+        mSampleGenerator.setChunkLimit(mChunkBudget.getChunkLimit());
+        mRegrowHandler.removeCallbacks(mRegrowRunnable);
+        mRegrowHandler.postDelayed(mRegrowRunnable, REGROW_DELAY_MS);
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         // Don't use binding.
         return null;
     }
 
+    // Engine statistics, for watching memory and CPU usage in the field:
+    // $ adb shell dumpsys activity service net.pmarks.chromadoze/.NoiseService [--json] [trace [on|off]]
+    //       [latency [on|off]]
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        boolean json = false;
+        boolean trace = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("--json".equals(args[i])) {
+                json = true;
+            } else if ("trace".equals(args[i])) {
+                trace = true;
+                if (i + 1 < args.length && ("on".equals(args[i + 1]) || "off".equals(args[i + 1]))) {
+                    StageTracer.setEnabled("on".equals(args[++i]));
+                    StageTracer.clear();
+                }
+            } else if ("latency".equals(args[i])) {
+                if (i + 1 < args.length && ("on".equals(args[i + 1]) || "off".equals(args[i + 1]))) {
+                    LatencyProbe.setEnabled("on".equals(args[++i]));
+                    LatencyProbe.clear();
+                }
+            }
+        }
+
+        final JSONObject stats;
+        try {
+            stats = collectStats();
+        } catch (JSONException e) {
+            pw.println("Failed to collect stats: " + e);
+            return;
+        }
+        if (json) {
+            try {
+                pw.println(stats.toString(2));
+            } catch (JSONException e) {
+                pw.println("Failed to format stats: " + e);
+            }
+        } else {
+            printStats(pw, stats, "");
+        }
+        if (trace) {
+            pw.println("tracing: " + (StageTracer.isEnabled() ? "on" : "off"));
+            StageTracer.dump(pw);
+        }
+    }
+
+    private JSONObject collectStats() throws JSONException {
+        final JSONObject stats = new JSONObject();
+        final JSONObject generator = new JSONObject();
+        mSampleGenerator.dumpStats(generator);
+        stats.put("generator", generator);
+        final JSONObject shuffler = new JSONObject();
+        mSampleShuffler.dumpStats(shuffler);
+        stats.put("shuffler", shuffler);
+        final JSONObject params = new JSONObject();
+        mParams.dumpStats(params);
+        stats.put("params", params);
+        final JSONObject budget = new JSONObject();
+        budget.put("chunkLimit", mChunkBudget.getChunkLimit());
+        budget.put("maxChunkLimit", mChunkBudget.getMaxChunkLimit());
+        budget.put("ladder", mLadder.toString());
+        stats.put("chunkBudget", budget);
+        final JSONObject profile = new JSONObject();
+        if (mProfile != null) {
+            mProfile.dumpStats(profile);
+        }
+        stats.put("deviceProfile", profile);
+        final JSONObject power = new JSONObject();
+        mPowerPolicy.dumpStats(power);
+        stats.put("power", power);
+        final JSONObject latency = new JSONObject();
+        LatencyProbe.dumpStats(latency);
+        stats.put("latency", latency);
+        return stats;
+    }
+
+    // Print a JSONObject as indented "key: value" lines.
+    private static void printStats(PrintWriter pw, JSONObject obj, String indent) {
+        for (Iterator<String> it = obj.keys(); it.hasNext(); ) {
+            final String key = it.next();
+            final Object value = obj.opt(key);
+            if (value instanceof JSONObject) {
+                pw.println(indent + key + ":");
+                printStats(pw, (JSONObject) value, indent + "  ");
+            } else {
+                pw.println(indent + key + ": " + value);
+            }
+        }
+    }
+
     // Create an icon for the notification bar.
     private Notification makeNotify() {
         NotificationCompat.Builder b = new NotificationCompat.Builder(this, CHANNEL_ID)
@@ -0,0 +1,24 @@
+package net.pmarks.chromadoze;
+
+// A NoiseSource multiplies a spectrum envelope by white noise, producing
+// the DCT coefficients for one chunk.  Each one is used by a single thread.
+//
+// The noise is 8 uniform values from [-1, 1) per 64-bit random number,
+// with only 256 levels, which is plenty once it's been through the IDCT.
+class NoiseSource {
+    private final XORShiftRandom mRandom = new XORShiftRandom();
+
+    // Write envelope[i] * noise into out[i], for i in [0, out.length).
+    // out.length must be a multiple of 8, and envelope.length >= out.length.
+    public void fill(float[] envelope, float[] out) {
+        final float scale = 1f / 128f;
+        for (int i = 0; i < out.length; ) {
+            long rand = mRandom.nextLong();
+            for (int b = 0; b < 8; b++) {
+                out[i] = envelope[i] * ((byte) rand * scale);
+                i++;
+                rand >>= 8;
+            }
+        }
+    }
+}
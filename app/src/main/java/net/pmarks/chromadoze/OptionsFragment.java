@@ -21,6 +21,9 @@ public class OptionsFragment extends Fragment implements OnSeekBarChangeListener
     private TextView mPeriodText;
     private SwitchCompat mAutoPlayCheck;
     private SwitchCompat mIgnoreAudioFocusCheck;
+    private SwitchCompat mRefreshChunksCheck;
+    private SwitchCompat mRefreshBatteryCheck;
+    private SwitchCompat mSmoothBandEdgesCheck;
     private SwitchCompat mVolumeLimitCheck;
     private SeekBar mVolumeLimitSeek;
 
@@ -37,6 +40,9 @@ public class OptionsFragment extends Fragment implements OnSeekBarChangeListener
         mAutoPlayCheck = (SwitchCompat) v.findViewById(R.id.AutoPlayCheck);
 
         mIgnoreAudioFocusCheck = (SwitchCompat) v.findViewById(R.id.IgnoreAudioFocusCheck);
+        mRefreshChunksCheck = (SwitchCompat) v.findViewById(R.id.RefreshChunksCheck);
+        mRefreshBatteryCheck = (SwitchCompat) v.findViewById(R.id.RefreshBatteryCheck);
+        mSmoothBandEdgesCheck = (SwitchCompat) v.findViewById(R.id.SmoothBandEdgesCheck);
         mVolumeLimitCheck = (SwitchCompat) v.findViewById(R.id.VolumeLimitCheck);
         mVolumeLimitSeek = (SeekBar) v.findViewById(R.id.VolumeLimitSeek);
 
@@ -66,6 +72,17 @@ public class OptionsFragment extends Fragment implements OnSeekBarChangeListener
         mIgnoreAudioFocusCheck.setChecked(mUiState.getIgnoreAudioFocus());
         mIgnoreAudioFocusCheck.setOnCheckedChangeListener(this);
 
+        mRefreshChunksCheck.setChecked(mUiState.getRefreshChunks());
+        mRefreshChunksCheck.setOnCheckedChangeListener(this);
+
+        mRefreshBatteryCheck.setChecked(mUiState.getRefreshBatteryCheck());
+        mRefreshBatteryCheck.setOnCheckedChangeListener(this);
+        // Only matters while old blocks are being replaced.
+        mRefreshBatteryCheck.setEnabled(mUiState.getRefreshChunks());
+
+        mSmoothBandEdgesCheck.setChecked(mUiState.getSmoothBandEdges());
+        mSmoothBandEdgesCheck.setOnCheckedChangeListener(this);
+
         mVolumeLimitCheck.setOnCheckedChangeListener(this);
         mVolumeLimitSeek.setMax(UIState.MAX_VOLUME);
         mVolumeLimitSeek.setOnSeekBarChangeListener(this);
@@ -107,6 +124,13 @@ public class OptionsFragment extends Fragment implements OnSeekBarChangeListener
             mUiState.setAutoPlay(isChecked, true);
         } else if (buttonView == mIgnoreAudioFocusCheck) {
             mUiState.setIgnoreAudioFocus(isChecked);
+        } else if (buttonView == mRefreshChunksCheck) {
+            mUiState.setRefreshChunks(isChecked);
+            mRefreshBatteryCheck.setEnabled(isChecked);
+        } else if (buttonView == mRefreshBatteryCheck) {
+            mUiState.setRefreshBatteryCheck(isChecked);
+        } else if (buttonView == mSmoothBandEdgesCheck) {
+            mUiState.setSmoothBandEdges(isChecked);
         } else if (buttonView == mVolumeLimitCheck) {
             mUiState.setVolumeLimitEnabled(isChecked);
             redrawVolumeLimit();
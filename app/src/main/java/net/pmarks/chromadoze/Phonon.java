@@ -6,6 +6,8 @@ import android.content.Intent;
 public interface Phonon {
     public String toJSON();
 
+    public void writeBinary(byte[] out, int offset);
+
     public boolean isSilent();
 
     public float getBar(int band);
@@ -23,4 +25,7 @@ public interface Phonon {
     public void writeIntent(Intent intent);
 
     public boolean fastEquals(Phonon other);
+
+    // Cached hash of the contents, consistent with fastEquals().
+    public int fastHashCode();
 }
@@ -0,0 +1,262 @@
+package net.pmarks.chromadoze;
+
+import java.util.Arrays;
+import java.util.List;
+
+// PhononIndex answers two questions about the saved Phonons without
+// comparing against every one:
+//
+// - findEqual(): Is this Phonon already saved?  A hash table keyed by
+//   fastHashCode(), confirmed with fastEquals().
+//
+// - findNearest(): Which saved Phonon has the closest bars?  The bars are
+//   packed into one short[], sorted by their sum.  Two Phonons whose sums
+//   differ by d are at least d^2/BAND_COUNT apart (squared), so the search
+//   walks outward from the query's sum and stops once that bound exceeds
+//   the best match.  The same bound over four groups of 8 bars rejects
+//   most candidates before comparing all 32 bars.
+//
+// The index holds Phonons, not positions, so moving rows doesn't touch
+// it.  All Phonons must be clean; see PhononMutable.isDirty().
+class PhononIndex {
+    private static final int BAND_COUNT = SpectrumData.BAND_COUNT;
+    // Bars are stored as PhononMutable does, [0, 1023].
+    private static final int BAR_MAX = 1023;
+    private static final int GROUP_COUNT = 4;
+    private static final int GROUP_SIZE = BAND_COUNT / GROUP_COUNT;
+
+    // Open addressing with linear probing.  Equal Phonons may appear more
+    // than once.  Kept at most half full.
+    private Phonon[] mTable = new Phonon[16];
+    private int mCount = 0;
+
+    // The nearest-neighbor index, rebuilt by the next query after any
+    // add() or remove().
+    private boolean mSortedStale = true;
+    private Phonon[] mSorted;
+    private int[] mSums;
+    private int[] mGroupSums;
+    private short[] mBars;
+
+    public int size() {
+        return mCount;
+    }
+
+    public void rebuild(List<? extends Phonon> phonons) {
+        int capacity = 16;
+        while (capacity < phonons.size() * 2) {
+            capacity *= 2;
+        }
+        mTable = new Phonon[capacity];
+        mCount = 0;
+        for (Phonon ph : phonons) {
+            add(ph);
+        }
+    }
+
+    public void add(Phonon ph) {
+        if ((mCount + 1) * 2 > mTable.length) {
+            final Phonon[] old = mTable;
+            mTable = new Phonon[old.length * 2];
+            for (Phonon p : old) {
+                if (p != null) {
+                    insert(p);
+                }
+            }
+        }
+        insert(ph);
+        mCount++;
+        mSortedStale = true;
+    }
+
+    private void insert(Phonon ph) {
+        final int mask = mTable.length - 1;
+        int i = home(ph, mask);
+        while (mTable[i] != null) {
+            i = (i + 1) & mask;
+        }
+        mTable[i] = ph;
+    }
+
+    // Remove this exact object.  Returns false if it wasn't indexed.
+    public boolean remove(Phonon ph) {
+        final int mask = mTable.length - 1;
+        int i = home(ph, mask);
+        while (mTable[i] != ph) {
+            if (mTable[i] == null) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        // Shift later entries back over the hole, unless that would move
+        // them before their home slot.
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (mTable[j] == null) {
+                break;
+            }
+            final int k = home(mTable[j], mask);
+            final boolean stays = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+            if (!stays) {
+                mTable[i] = mTable[j];
+                i = j;
+            }
+        }
+        mTable[i] = null;
+        mCount--;
+        mSortedStale = true;
+        return true;
+    }
+
+    // Returns an indexed Phonon that fastEquals() ph, or null.
+    public Phonon findEqual(Phonon ph) {
+        if (mCount == 0) {
+            return null;
+        }
+        final int mask = mTable.length - 1;
+        for (int i = home(ph, mask); mTable[i] != null; i = (i + 1) & mask) {
+            if (mTable[i].fastEquals(ph)) {
+                return mTable[i];
+            }
+        }
+        return null;
+    }
+
+    // Returns the indexed Phonon with the closest bars, not counting
+    // exact copies of ph, or null if there isn't one.
+    public Phonon findNearest(Phonon ph) {
+        if (mCount == 0) {
+            return null;
+        }
+        if (mSortedStale) {
+            buildSorted();
+        }
+        final short[] query = new short[BAND_COUNT];
+        final int[] groups = new int[GROUP_COUNT];
+        final int sum = packBars(ph, query, 0, groups, 0);
+
+        // Start at the first entry whose sum is >= the query's.
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mSums[mid] < sum) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int up = lo;
+        int down = lo - 1;
+
+        Phonon best = null;
+        long bestDist = Long.MAX_VALUE;
+        while (up < mCount || down >= 0) {
+            // Visit whichever side is closer in sum.
+            final int i;
+            if (down < 0 || (up < mCount && mSums[up] - sum <= sum - mSums[down])) {
+                i = up++;
+            } else {
+                i = down--;
+            }
+            final long d = mSums[i] - sum;
+            if (best != null && d * d >= BAND_COUNT * bestDist) {
+                // Everything further out in sum is at least this far away.
+                break;
+            }
+            if (best != null && groupBound(groups, i) >= bestDist) {
+                continue;
+            }
+            final long dist = distance(query, i, bestDist);
+            if (dist < bestDist && !mSorted[i].fastEquals(ph)) {
+                best = mSorted[i];
+                bestDist = dist;
+            }
+        }
+        return best;
+    }
+
+    // A lower bound on the squared distance between the query and entry i,
+    // times GROUP_SIZE.
+    private long groupBound(int[] groups, int i) {
+        final int base = i * GROUP_COUNT;
+        long bound = 0;
+        for (int g = 0; g < GROUP_COUNT; g++) {
+            final long d = groups[g] - mGroupSums[base + g];
+            bound += d * d;
+        }
+        return bound / GROUP_SIZE;
+    }
+
+    // Squared distance between query and entry i, or some value >= limit
+    // if it's at least that far.
+    private long distance(short[] query, int i, long limit) {
+        final int base = i * BAND_COUNT;
+        long dist = 0;
+        for (int b = 0; b < BAND_COUNT; b++) {
+            final int d = query[b] - mBars[base + b];
+            dist += d * d;
+            if (dist >= limit) {
+                break;
+            }
+        }
+        return dist;
+    }
+
+    private void buildSorted() {
+        // Pack everything in table order, then sort by sum, carrying the
+        // table-order index in the low bits.
+        final Phonon[] phonons = new Phonon[mCount];
+        final short[] bars = new short[mCount * BAND_COUNT];
+        final int[] groupSums = new int[mCount * GROUP_COUNT];
+        final long[] order = new long[mCount];
+        int n = 0;
+        for (Phonon ph : mTable) {
+            if (ph != null) {
+                final int sum = packBars(ph, bars, n * BAND_COUNT, groupSums, n * GROUP_COUNT);
+                order[n] = ((long) sum << 32) | n;
+                phonons[n++] = ph;
+            }
+        }
+        Arrays.sort(order);
+
+        mSorted = new Phonon[mCount];
+        mSums = new int[mCount];
+        mGroupSums = new int[mCount * GROUP_COUNT];
+        mBars = new short[mCount * BAND_COUNT];
+        for (int i = 0; i < mCount; i++) {
+            final int j = (int) order[i];
+            mSorted[i] = phonons[j];
+            mSums[i] = (int) (order[i] >> 32);
+            System.arraycopy(bars, j * BAND_COUNT, mBars, i * BAND_COUNT, BAND_COUNT);
+            System.arraycopy(groupSums, j * GROUP_COUNT, mGroupSums, i * GROUP_COUNT, GROUP_COUNT);
+        }
+        mSortedStale = false;
+    }
+
+    // Write ph's bars into out, and the sum of each group into groups.
+    // Returns the sum of all the bars.
+    private static int packBars(Phonon ph, short[] out, int offset,
+                                int[] groups, int groupOffset) {
+        int sum = 0;
+        for (int g = 0; g < GROUP_COUNT; g++) {
+            int groupSum = 0;
+            for (int b = g * GROUP_SIZE; b < (g + 1) * GROUP_SIZE; b++) {
+                final short bar = (short) Math.round(ph.getBar(b) * BAR_MAX);
+                out[offset + b] = bar;
+                groupSum += bar;
+            }
+            groups[groupOffset + g] = groupSum;
+            sum += groupSum;
+        }
+        return sum;
+    }
+
+    private static int home(Phonon ph, int mask) {
+        // fastHashCode() is a polynomial hash, so mix the high bits in.
+        int h = ph.fastHashCode() * 0x9E3779B9;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+}
@@ -14,7 +14,7 @@ import java.util.Locale;
 // information, presented as a single row in the "Memory" view.
 //
 // Supported operations:
-// - Convert to/from JSON for storage.
+// - Convert to/from JSON or a fixed-size binary record for storage.
 // - Efficient equality testing.
 // - Convert to SpectrumData for playback.
 // - Get and set sound-related values.
@@ -79,6 +79,55 @@ public class PhononMutable implements Phonon {
         return true;
     }
 
+    // Binary record: the bars packed as 10-bit little-endian fields, then
+    // one byte each for minvol and period.  See PresetStore.
+    public static final int BINARY_SIZE = (BAND_COUNT * 10 + 7) / 8 + 2;
+
+    public boolean loadFromBinary(byte[] in, int offset) {
+        long bits = 0;
+        int nbits = 0;
+        int pos = offset;
+        for (int i = 0; i < BAND_COUNT; i++) {
+            while (nbits < 10) {
+                bits |= (long) (in[pos++] & 0xff) << nbits;
+                nbits += 8;
+            }
+            mBars[i] = (short) (bits & BAR_MAX);
+            bits >>>= 10;
+            nbits -= 10;
+        }
+        final int minVol = in[offset + BINARY_SIZE - 2] & 0xff;
+        final int period = in[offset + BINARY_SIZE - 1] & 0xff;
+        if (minVol > 100 || period > PERIOD_MAX) {
+            return false;
+        }
+        mMinVol = minVol;
+        mPeriod = period;
+        cleanMe();
+        return true;
+    }
+
+    @Override
+    public void writeBinary(byte[] out, int offset) {
+        long bits = 0;
+        int nbits = 0;
+        int pos = offset;
+        for (short s : mBars) {
+            bits |= (long) s << nbits;
+            nbits += 10;
+            while (nbits >= 8) {
+                out[pos++] = (byte) bits;
+                bits >>>= 8;
+                nbits -= 8;
+            }
+        }
+        if (nbits > 0) {
+            out[pos] = (byte) bits;
+        }
+        out[offset + BINARY_SIZE - 2] = (byte) mMinVol;
+        out[offset + BINARY_SIZE - 1] = (byte) mPeriod;
+    }
+
     // Storing everything as text might be useful if I ever want
     // to do an export feature.
     @Override
@@ -249,6 +298,14 @@ public class PhononMutable implements Phonon {
         mDirty = false;
     }
 
+    @Override
+    public int fastHashCode() {
+        if (mDirty) {
+            throw new IllegalStateException();
+        }
+        return mHash;
+    }
+
     @Override
     public boolean fastEquals(Phonon other) {
         PhononMutable o = (PhononMutable) other;
@@ -0,0 +1,188 @@
+package net.pmarks.chromadoze;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// PowerPolicy decides how hard the engine may work, given the device's
+// thermal state, battery saver, and battery level.
+//
+// Under stress (the device is getting hot, or battery saver is on):
+// - The IDCT runs on one thread.
+// - The rolling chunk refresh stops.
+// - Playback uses a deeper AudioTrack buffer, so a slowed-down CPU is
+//   less likely to cause an underrun.
+// Separately, the refresh also waits while the battery is low and unplugged.
+//
+// The readings come from a StatusSource, so the policy itself has no
+// Android dependencies beyond a few constants.  All methods are safe to
+// call from any thread.  Only update() talks to the system, and the
+// queries never take a lock, so the generator thread can ask as often as
+// it likes.
+class PowerPolicy {
+    // Where the readings come from.
+    public interface StatusSource {
+        // One of PowerManager.THERMAL_STATUS_*.
+        int getThermalStatus();
+
+        boolean isPowerSaveMode();
+
+        BatteryStatus getBatteryStatus();
+    }
+
+    // The battery, from a single read of the system state.
+    static final class BatteryStatus {
+        // 0..100, or -1 if unknown.
+        final int mPercent;
+        final boolean mCharging;
+
+        BatteryStatus(int percent, boolean charging) {
+            mPercent = percent;
+            mCharging = charging;
+        }
+    }
+
+    // One set of readings.  Replaced as a whole, never modified.
+    private static final class Readings {
+        final long mTimeMs;
+        final int mThermalStatus;
+        final boolean mPowerSaveMode;
+        final int mBatteryPercent;
+        final boolean mCharging;
+
+        Readings(long timeMs, int thermalStatus, boolean powerSaveMode,
+                 int batteryPercent, boolean charging) {
+            mTimeMs = timeMs;
+            mThermalStatus = thermalStatus;
+            mPowerSaveMode = powerSaveMode;
+            mBatteryPercent = batteryPercent;
+            mCharging = charging;
+        }
+    }
+
+    // update() calls closer together than this keep the last readings.
+    static final long MIN_UPDATE_INTERVAL_MS = 10 * 1000;
+
+    // PowerManager.THERMAL_STATUS_NONE, which older SDKs don't have.
+    private static final int THERMAL_STATUS_NONE = 0;
+    // PowerManager.THERMAL_STATUS_MODERATE: "UX is not impacted but we
+    // will likely throttle", so back off before the system does it for us.
+    private static final int THERMAL_STATUS_MODERATE = 2;
+
+    // Below this battery level, skip the rolling chunk refresh unless charging.
+    private static final int REFRESH_MIN_BATTERY_PERCENT = 30;
+
+    private final StatusSource mSource;
+
+    // The most recent readings; mTimeMs < 0 until the first update().
+    private volatile Readings mReadings =
+            new Readings(-1, THERMAL_STATUS_NONE, false, -1, false);
+
+    PowerPolicy(StatusSource source) {
+        mSource = source;
+    }
+
+    // Take new readings, unless the last ones are recent.  nowMs is from
+    // SystemClock.elapsedRealtime().  Returns true if it took readings.
+    public boolean update(long nowMs) {
+        final Readings last = mReadings;
+        if (last.mTimeMs >= 0 && nowMs - last.mTimeMs < MIN_UPDATE_INTERVAL_MS) {
+            return false;
+        }
+        final BatteryStatus battery = mSource.getBatteryStatus();
+        mReadings = new Readings(nowMs, mSource.getThermalStatus(), mSource.isPowerSaveMode(),
+                battery.mPercent, battery.mCharging);
+        return true;
+    }
+
+    private static boolean isStressed(Readings r) {
+        return r.mThermalStatus >= THERMAL_STATUS_MODERATE || r.mPowerSaveMode;
+    }
+
+    public boolean isStressed() {
+        return isStressed(mReadings);
+    }
+
+    // Whether optional background work should run.  If checkBattery is
+    // false, only thermal state and battery saver count.
+    public boolean isRefreshAllowed(boolean checkBattery) {
+        final Readings r = mReadings;
+        if (isStressed(r)) {
+            return false;
+        }
+        if (!checkBattery || r.mCharging || r.mBatteryPercent < 0) {
+            return true;
+        }
+        return r.mBatteryPercent >= REFRESH_MIN_BATTERY_PERCENT;
+    }
+
+    // Threads for the parallel IDCT, given what the device could handle.
+    public int getParallelThreads(int normalThreads) {
+        return isStressed() ? 1 : normalThreads;
+    }
+
+    public boolean useLargeBuffer() {
+        return isStressed();
+    }
+
+    public void dumpStats(JSONObject out) throws JSONException {
+        final Readings r = mReadings;
+        out.put("readingTimeMs", r.mTimeMs);
+        out.put("thermalStatus", r.mThermalStatus);
+        out.put("powerSaveMode", r.mPowerSaveMode);
+        out.put("batteryPercent", r.mBatteryPercent);
+        out.put("charging", r.mCharging);
+        out.put("stressed", isStressed(r));
+    }
+
+    // Reads the real device state.
+    static class SystemStatusSource implements StatusSource {
+        private final Context mContext;
+        private final PowerManager mPowerManager;
+
+        SystemStatusSource(Context context) {
+            mContext = context;
+            mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        }
+
+        @Override
+        public int getThermalStatus() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                return mPowerManager.getCurrentThermalStatus();
+            }
+            return THERMAL_STATUS_NONE;
+        }
+
+        @Override
+        public boolean isPowerSaveMode() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return mPowerManager.isPowerSaveMode();
+            }
+            return false;
+        }
+
+        // ACTION_BATTERY_CHANGED is sticky, so this doesn't register
+        // anything.  It's still a binder call, so make just one.
+        @Override
+        public BatteryStatus getBatteryStatus() {
+            final Intent battery = mContext.registerReceiver(
+                    null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            if (battery == null) {
+                return new BatteryStatus(-1, false);
+            }
+            final int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            final int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            final boolean charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            if (level < 0 || scale <= 0) {
+                return new BatteryStatus(-1, charging);
+            }
+            return new BatteryStatus(level * 100 / scale, charging);
+        }
+    }
+}
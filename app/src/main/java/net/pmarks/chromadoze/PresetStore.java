@@ -0,0 +1,646 @@
+package net.pmarks.chromadoze;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// PresetStore keeps the scratch Phonon and the saved Phonons in one file
+// of fixed-size binary records, instead of one JSON string per
+// SharedPreferences key.
+//
+// Version 2 layout:
+// - A 16-byte header: "CDPS", version, 3 reserved bytes, then the slot
+//   of the first saved Phonon and the first free slot (-1 for none).
+// - Slots of SLOT_SIZE bytes: the next slot in the list (-1 at the end),
+//   then a PhononMutable binary record.  Slot 0 is the scratch Phonon.
+// The saved Phonons form a linked list, and unused slots form a free list.
+// So inserting, removing, or moving a Phonon only rewrites a few slots and
+// maybe the header, no matter where it is in the library.
+//
+// Version 1 (a plain array of records after an 8-byte header) is still
+// read, and gets rewritten as version 2.
+//
+// The in-memory bookkeeping must only be touched from the main thread.
+// File I/O runs on a single background thread, in order, so a load always
+// sees the result of earlier saves.
+class PresetStore {
+    private static final String TAG = "PresetStore";
+    public static final String FILE_NAME = "presets.bin";
+
+    private static final byte[] MAGIC = {'C', 'D', 'P', 'S'};
+    private static final int VERSION_1 = 1;
+    private static final int V1_HEADER_SIZE = 8;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = PhononMutable.BINARY_SIZE;
+    private static final int SLOT_SIZE = 4 + RECORD_SIZE;
+    private static final int SCRATCH_SLOT = 0;
+    private static final int NO_SLOT = -1;
+
+    // Shared by every instance, so an old Activity's pending writes finish
+    // before a new one reads the file.
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+    // Set by the I/O thread; forces a full rewrite on the next save().
+    private static final AtomicBoolean sWriteFailed = new AtomicBoolean(false);
+
+    private final File mFile;
+
+    // Mirror of the file's structure.
+    // The slot of each saved Phonon, in list order.
+    private final ArrayList<Integer> mSlots = new ArrayList<>();
+    // Unused slots.  The last one is the head of the file's free list.
+    private final ArrayList<Integer> mFreeSlots = new ArrayList<>();
+    // Number of slots in the file, including the scratch.
+    private int mSlotCount = 1;
+    // Slots whose next pointer or contents changed since the last save().
+    private final BitSet mDirtySlots = new BitSet();
+    private boolean mHeaderDirty = false;
+    // Write a fresh, compacted file on the next save().
+    private boolean mRewrite = true;
+    // The scratch record as of the last save().
+    private byte[] mSavedScratch = null;
+    // Where loadScratch() found the scratch record, or -1.
+    private int mScratchOffset = -1;
+
+    // A failed read is retried this many times, doubling the delay.
+    private static final int LOAD_RETRIES = 4;
+    private static final long LOAD_RETRY_MS = 1000;
+
+    PresetStore(File file) {
+        mFile = file;
+    }
+
+    public static PresetStore forContext(Context context) {
+        return new PresetStore(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    public interface LoadCallback {
+        // Runs on the main thread.  phonons holds the scratch Phonon and then
+        // the saved Phonons, or is null if there's no usable file.
+        void onLoaded(ArrayList<PhononMutable> phonons);
+
+        // Runs on the main thread if the file exists but couldn't be read,
+        // even after retrying.  The store must not be saved to after this,
+        // or it would replace the library with whatever is in memory.
+        void onLoadFailed();
+    }
+
+    // A parsed file, built on the I/O thread for the main thread to use.
+    private static class Parsed {
+        ArrayList<PhononMutable> phonons = null;
+        final ArrayList<Integer> slots = new ArrayList<>();
+        final ArrayList<Integer> freeSlots = new ArrayList<>();
+        int slotCount = 1;
+        boolean rewrite = true;
+        // The file is there, but reading it failed.
+        boolean failed = false;
+    }
+
+    // Read only the scratch Phonon, for a quick start.  Returns null if the
+    // file is missing or unreadable.  Blocks until earlier saves are on disk.
+    public PhononMutable loadScratch() {
+        final byte[] data;
+        try {
+            data = sExecutor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    return readFile(HEADER_SIZE + SLOT_SIZE);
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            if (!(e.getCause() instanceof FileNotFoundException)) {
+                Log.w(TAG, "Failed to read " + mFile, e.getCause());
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        final int offset;
+        switch (getVersion(data)) {
+            case VERSION_1:
+                offset = V1_HEADER_SIZE;
+                break;
+            case VERSION:
+                offset = data.length >= HEADER_SIZE + SLOT_SIZE ?
+                        slotOffset(SCRATCH_SLOT) + 4 : -1;
+                break;
+            default:
+                offset = -1;
+                break;
+        }
+        final PhononMutable scratch = new PhononMutable();
+        if (offset < 0 || data.length < offset + RECORD_SIZE ||
+                !scratch.loadFromBinary(data, offset)) {
+            return null;
+        }
+        mScratchOffset = offset;
+        mSavedScratch = Arrays.copyOfRange(data, offset, offset + RECORD_SIZE);
+        return scratch;
+    }
+
+    // Write just the scratch record, in place, while loadAsync() is still
+    // running.  Needs a successful loadScratch() first.  Returns false if
+    // there was nothing to write.
+    public boolean saveScratch(Phonon scratch) {
+        if (mScratchOffset < 0) {
+            return false;
+        }
+        final byte[] record = new byte[RECORD_SIZE];
+        scratch.writeBinary(record, 0);
+        if (Arrays.equals(record, mSavedScratch)) {
+            return false;
+        }
+        mSavedScratch = record;
+        final int offset = mScratchOffset;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeAt(offset, record);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to update " + mFile, e);
+                    sWriteFailed.set(true);
+                }
+            }
+        });
+        return true;
+    }
+
+    // Read and decode the whole file in the background.  If anything is
+    // damaged, this returns what it can, and the next save() rewrites the
+    // file.  Don't call the other methods until the callback runs.
+    public void loadAsync(final LoadCallback callback) {
+        loadAsync(callback, new Handler(Looper.getMainLooper()), 0);
+    }
+
+    private void loadAsync(final LoadCallback callback, final Handler handler,
+                           final int attempt) {
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Parsed result = readAndParse();
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!result.failed) {
+                            applyParsed(result);
+                            callback.onLoaded(result.phonons);
+                        } else if (attempt < LOAD_RETRIES) {
+                            handler.postDelayed(new Runnable() {
+                                @Override
+                                public void run() {
+                                    loadAsync(callback, handler, attempt + 1);
+                                }
+                            }, LOAD_RETRY_MS << attempt);
+                        } else {
+                            callback.onLoadFailed();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // Like loadAsync(), but blocks, doesn't retry, and returns what the
+    // callback would get.  Returns null without changing anything if the
+    // read failed.
+    ArrayList<PhononMutable> loadNow() {
+        Parsed parsed;
+        try {
+            parsed = sExecutor.submit(new Callable<Parsed>() {
+                @Override
+                public Parsed call() {
+                    return readAndParse();
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (parsed.failed) {
+            return null;
+        }
+        applyParsed(parsed);
+        return parsed.phonons;
+    }
+
+    private Parsed readAndParse() {
+        try {
+            return parse(readFile(Integer.MAX_VALUE));
+        } catch (IOException e) {
+            final Parsed parsed = new Parsed();
+            if (!(e instanceof FileNotFoundException)) {
+                Log.w(TAG, "Failed to read " + mFile, e);
+                parsed.failed = true;
+            }
+            return parsed;
+        }
+    }
+
+    private void applyParsed(Parsed parsed) {
+        mSlots.clear();
+        mSlots.addAll(parsed.slots);
+        mFreeSlots.clear();
+        mFreeSlots.addAll(parsed.freeSlots);
+        mSlotCount = parsed.slotCount;
+        mDirtySlots.clear();
+        mHeaderDirty = false;
+        mRewrite = parsed.rewrite;
+        if (parsed.phonons != null) {
+            mSavedScratch = new byte[RECORD_SIZE];
+            parsed.phonons.get(0).writeBinary(mSavedScratch, 0);
+        } else {
+            mSavedScratch = null;
+        }
+    }
+
+    private static int getVersion(byte[] data) {
+        if (data.length < V1_HEADER_SIZE) {
+            return -1;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) {
+                return -1;
+            }
+        }
+        return data[MAGIC.length];
+    }
+
+    private static Parsed parse(byte[] data) {
+        final Parsed parsed = new Parsed();
+        switch (getVersion(data)) {
+            case VERSION_1:
+                parseVersion1(data, parsed);
+                break;
+            case VERSION:
+                if (data.length >= HEADER_SIZE + SLOT_SIZE) {
+                    parseVersion2(data, parsed);
+                }
+                break;
+        }
+        return parsed;
+    }
+
+    private static void parseVersion1(byte[] data, Parsed parsed) {
+        final int count = (data.length - V1_HEADER_SIZE) / RECORD_SIZE;
+        final ArrayList<PhononMutable> out = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final PhononMutable phm = new PhononMutable();
+            if (!phm.loadFromBinary(data, V1_HEADER_SIZE + i * RECORD_SIZE)) {
+                break;
+            }
+            out.add(phm);
+        }
+        if (!out.isEmpty()) {
+            parsed.phonons = out;
+        }
+    }
+
+    private static void parseVersion2(byte[] data, Parsed parsed) {
+        final int slotCount = (data.length - HEADER_SIZE) / SLOT_SIZE;
+        final PhononMutable scratch = new PhononMutable();
+        if (!scratch.loadFromBinary(data, slotOffset(SCRATCH_SLOT) + 4)) {
+            return;
+        }
+        final ArrayList<PhononMutable> out = new ArrayList<>();
+        out.add(scratch);
+
+        // Follow both lists.  Stop at anything out of range, repeated, or
+        // unreadable.
+        boolean damaged = false;
+        final BitSet seen = new BitSet(slotCount);
+        seen.set(SCRATCH_SLOT);
+        for (int slot = getInt(data, 8); slot != NO_SLOT; ) {
+            if (slot <= SCRATCH_SLOT || slot >= slotCount || seen.get(slot)) {
+                damaged = true;
+                break;
+            }
+            final int offset = slotOffset(slot);
+            final PhononMutable phm = new PhononMutable();
+            if (!phm.loadFromBinary(data, offset + 4)) {
+                damaged = true;
+                break;
+            }
+            seen.set(slot);
+            out.add(phm);
+            parsed.slots.add(slot);
+            slot = getInt(data, offset);
+        }
+        for (int slot = getInt(data, 12); slot != NO_SLOT && !damaged; ) {
+            if (slot <= SCRATCH_SLOT || slot >= slotCount || seen.get(slot)) {
+                damaged = true;
+                break;
+            }
+            seen.set(slot);
+            // The head of the free list is the last element.
+            parsed.freeSlots.add(0, slot);
+            slot = getInt(data, slotOffset(slot));
+        }
+        if (seen.cardinality() != slotCount) {
+            // Leaked slots.
+            damaged = true;
+        }
+        parsed.phonons = out;
+        parsed.slotCount = slotCount;
+        parsed.rewrite = damaged;
+    }
+
+    // The saved Phonon at index is new.
+    public void onInsert(int index) {
+        final int slot;
+        if (mFreeSlots.isEmpty()) {
+            slot = mSlotCount++;
+        } else {
+            slot = mFreeSlots.remove(mFreeSlots.size() - 1);
+            mHeaderDirty = true;
+        }
+        mSlots.add(index, slot);
+        mDirtySlots.set(slot);
+        markPredecessorDirty(index);
+    }
+
+    // The saved Phonon at index is gone.
+    public void onRemove(int index) {
+        final int slot = mSlots.remove(index);
+        markPredecessorDirty(index);
+        mFreeSlots.add(slot);
+        mDirtySlots.set(slot);
+        mHeaderDirty = true;
+    }
+
+    // The saved Phonon at from is now at to.
+    public void onMove(int from, int to) {
+        final int slot = mSlots.get(from);
+        // The old predecessor now points at from's successor.
+        markPredecessorDirty(from);
+        UIState.moveItem(mSlots, from, to);
+        markPredecessorDirty(to);
+        mDirtySlots.set(slot);
+    }
+
+    // The slot (or header) pointing at index needs a new next pointer.
+    private void markPredecessorDirty(int index) {
+        if (index == 0) {
+            mHeaderDirty = true;
+        } else {
+            mDirtySlots.set(mSlots.get(index - 1));
+        }
+    }
+
+    // Queue the changes since the last save() for writing, and return
+    // without waiting.  Returns false if there was nothing to write.
+    public boolean save(Phonon scratch, List<? extends Phonon> saved) {
+        final byte[] scratchRecord = new byte[RECORD_SIZE];
+        scratch.writeBinary(scratchRecord, 0);
+        if (!Arrays.equals(scratchRecord, mSavedScratch)) {
+            mDirtySlots.set(SCRATCH_SLOT);
+        }
+        mSavedScratch = scratchRecord;
+
+        if (sWriteFailed.getAndSet(false) || mSlots.size() != saved.size()) {
+            // Either the file is in an unknown state, or someone changed
+            // the list without telling us.
+            mRewrite = true;
+        }
+        if (mRewrite) {
+            final byte[] data = compact(saved);
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        writeFile(data);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to write " + mFile, e);
+                        sWriteFailed.set(true);
+                    }
+                }
+            });
+            return true;
+        }
+        if (mDirtySlots.isEmpty() && !mHeaderDirty) {
+            return false;
+        }
+
+        // Collect the new contents of each dirty slot.
+        final int[] listIndex = new int[mSlotCount];
+        Arrays.fill(listIndex, -1);
+        for (int i = 0; i < mSlots.size(); i++) {
+            listIndex[mSlots.get(i)] = i;
+        }
+        final int[] freeIndex = new int[mSlotCount];
+        Arrays.fill(freeIndex, -1);
+        for (int i = 0; i < mFreeSlots.size(); i++) {
+            freeIndex[mFreeSlots.get(i)] = i;
+        }
+        final int[] slots = new int[mDirtySlots.cardinality()];
+        final byte[][] contents = new byte[slots.length][];
+        int n = 0;
+        for (int slot = mDirtySlots.nextSetBit(0); slot >= 0; slot = mDirtySlots.nextSetBit(slot + 1)) {
+            final byte[] buf = new byte[SLOT_SIZE];
+            if (slot == SCRATCH_SLOT) {
+                putInt(buf, 0, NO_SLOT);
+                System.arraycopy(scratchRecord, 0, buf, 4, RECORD_SIZE);
+            } else if (listIndex[slot] >= 0) {
+                final int i = listIndex[slot];
+                putInt(buf, 0, i + 1 < mSlots.size() ? mSlots.get(i + 1) : NO_SLOT);
+                saved.get(i).writeBinary(buf, 4);
+            } else if (freeIndex[slot] >= 0) {
+                final int i = freeIndex[slot];
+                putInt(buf, 0, i > 0 ? mFreeSlots.get(i - 1) : NO_SLOT);
+            } else {
+                throw new IllegalStateException("Lost slot " + slot);
+            }
+            slots[n] = slot;
+            contents[n] = buf;
+            n++;
+        }
+        final byte[] header;
+        if (mHeaderDirty) {
+            header = new byte[HEADER_SIZE];
+            writeHeader(header);
+        } else {
+            header = null;
+        }
+        mDirtySlots.clear();
+        mHeaderDirty = false;
+
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSlots(slots, contents, header);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to update " + mFile, e);
+                    sWriteFailed.set(true);
+                }
+            }
+        });
+        return true;
+    }
+
+    // Write a fresh file, and wait for it.  Returns false if that failed,
+    // so the caller still has the only copy.
+    public boolean saveNow(Phonon scratch, List<? extends Phonon> saved) {
+        mSavedScratch = new byte[RECORD_SIZE];
+        scratch.writeBinary(mSavedScratch, 0);
+        sWriteFailed.set(false);
+        final byte[] data = compact(saved);
+        try {
+            sExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    writeFile(data);
+                    return null;
+                }
+            }).get();
+            return true;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Failed to write " + mFile, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mRewrite = true;
+        return false;
+    }
+
+    // Lay out a fresh file, with the saved Phonons in slots 1..n.
+    private byte[] compact(List<? extends Phonon> saved) {
+        mSlots.clear();
+        mFreeSlots.clear();
+        for (int i = 0; i < saved.size(); i++) {
+            mSlots.add(i + 1);
+        }
+        mSlotCount = saved.size() + 1;
+        mDirtySlots.clear();
+        mHeaderDirty = false;
+        mRewrite = false;
+
+        final byte[] data = new byte[slotOffset(mSlotCount)];
+        writeHeader(data);
+        putInt(data, slotOffset(SCRATCH_SLOT), NO_SLOT);
+        System.arraycopy(mSavedScratch, 0, data, slotOffset(SCRATCH_SLOT) + 4, RECORD_SIZE);
+        for (int i = 0; i < saved.size(); i++) {
+            final int offset = slotOffset(i + 1);
+            putInt(data, offset, i + 1 < saved.size() ? i + 2 : NO_SLOT);
+            saved.get(i).writeBinary(data, offset + 4);
+        }
+        return data;
+    }
+
+    private void writeHeader(byte[] data) {
+        System.arraycopy(MAGIC, 0, data, 0, MAGIC.length);
+        data[MAGIC.length] = VERSION;
+        putInt(data, 8, mSlots.isEmpty() ? NO_SLOT : mSlots.get(0));
+        putInt(data, 12, mFreeSlots.isEmpty() ? NO_SLOT : mFreeSlots.get(mFreeSlots.size() - 1));
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    // The rest runs on sExecutor.
+
+    // Read up to maxLength bytes from the start of the file.
+    private byte[] readFile(int maxLength) throws IOException {
+        final FileInputStream is = new FileInputStream(mFile);
+        try {
+            final long length = Math.min(mFile.length(), maxLength);
+            final byte[] data = new byte[(int) length];
+            int pos = 0;
+            while (pos < data.length) {
+                final int n = is.read(data, pos, data.length - pos);
+                if (n < 0) {
+                    throw new IOException("Short read");
+                }
+                pos += n;
+            }
+            return data;
+        } finally {
+            is.close();
+        }
+    }
+
+    // Replace the whole file.  The new contents are written to a temporary
+    // file first, so a crash can't leave a half-written library.
+    private void writeFile(byte[] data) throws IOException {
+        final File tmp = new File(mFile.getPath() + ".new");
+        final FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            os.write(data);
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Failed to rename " + tmp);
+        }
+    }
+
+    // Slots are in ascending order, so new slots extend the file without
+    // leaving holes.  The header goes last, so it never points at a slot
+    // that isn't written yet.
+    private void writeSlots(int[] slots, byte[][] contents, byte[] header) throws IOException {
+        final RandomAccessFile f = new RandomAccessFile(mFile, "rw");
+        try {
+            for (int i = 0; i < slots.length; i++) {
+                f.seek(slotOffset(slots[i]));
+                f.write(contents[i]);
+            }
+            if (header != null) {
+                f.seek(0);
+                f.write(header);
+            }
+            f.getFD().sync();
+        } finally {
+            f.close();
+        }
+    }
+
+    // Overwrite part of the existing file.  Don't recreate a missing one.
+    private void writeAt(int offset, byte[] data) throws IOException {
+        if (!mFile.exists()) {
+            throw new FileNotFoundException(mFile.getPath());
+        }
+        final RandomAccessFile f = new RandomAccessFile(mFile, "rw");
+        try {
+            f.seek(offset);
+            f.write(data);
+            f.getFD().sync();
+        } finally {
+            f.close();
+        }
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) |
+                ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
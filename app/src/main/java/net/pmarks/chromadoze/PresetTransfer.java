@@ -0,0 +1,411 @@
+package net.pmarks.chromadoze;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.DocumentsContract;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+// PresetTransfer copies the Memory library to or from a JSON Lines file,
+// with one PhononMutable.toJSON() object per line.
+//
+// Both directions stream on a background thread, so the file never sits
+// in memory all at once.  An import hands Phonons to the main thread in
+// batches, and waits for each batch to be applied before reading more.
+// Lines that are too long or don't parse are skipped and counted.
+//
+// A transfer outlives the Activity that started it, so rotating the screen
+// doesn't interrupt it.  The UI detaches its Listener when its views go
+// away, and attaches a new one from getActive().  Meanwhile, an import
+// waits with its next batch.  The result is always shown as a Toast.
+class PresetTransfer {
+    private static final String TAG = "PresetTransfer";
+    public static final String MIME_TYPE = "application/jsonl";
+
+    private static final int BATCH_SIZE = 500;
+    // A valid record is about 170 characters.
+    private static final int MAX_LINE_CHARS = 4096;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public interface Listener {
+        // These run on the main thread.  total is -1 when unknown.
+        void onTransferProgress(int done, int total);
+
+        // Import only.  Returns how many were added, not counting
+        // duplicates.
+        int onImportBatch(List<PhononMutable> batch);
+
+        // The transfer is over, and its result has been shown.
+        void onTransferFinished();
+    }
+
+    // The transfer in progress, or null.  Only touched on the main thread.
+    private static PresetTransfer sActive = null;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final boolean mIsImport;
+    private volatile boolean mCancelled = false;
+
+    // Main thread only.
+    private Listener mListener;
+    private int mLastDone = 0;
+    private int mLastTotal = -1;
+
+    // Communication variables; must be synchronized.
+    private List<PhononMutable> mPendingBatch = null;
+    private int mBatchAdded = 0;
+
+    private PresetTransfer(Context context, Uri uri, boolean isImport, Listener listener) {
+        mContext = context.getApplicationContext();
+        mResolver = mContext.getContentResolver();
+        mUri = uri;
+        mIsImport = isImport;
+        mListener = listener;
+        sActive = this;
+    }
+
+    // Returns the transfer in progress, or null.  Must be called from the
+    // main thread.
+    public static PresetTransfer getActive() {
+        return sActive;
+    }
+
+    // Write phonons to uri.  The list is copied, so the caller may keep
+    // editing the library.
+    public static PresetTransfer startExport(Context context, Uri uri,
+                                             List<Phonon> phonons, Listener listener) {
+        final PresetTransfer t = new PresetTransfer(context, uri, false, listener);
+        t.mLastTotal = phonons.size();
+        final ArrayList<Phonon> snapshot = new ArrayList<>(phonons);
+        new Thread("PresetExport") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                t.runExport(snapshot);
+            }
+        }.start();
+        return t;
+    }
+
+    // Read Phonons from uri, and pass them to onImportBatch().
+    public static PresetTransfer startImport(Context context, Uri uri, Listener listener) {
+        final PresetTransfer t = new PresetTransfer(context, uri, true, listener);
+        new Thread("PresetImport") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                t.runImport();
+            }
+        }.start();
+        return t;
+    }
+
+    public boolean isImport() {
+        return mIsImport;
+    }
+
+    // Attach a new listener, or detach with null.  It hears the latest
+    // progress right away.  Must be called from the main thread.
+    public void setListener(Listener listener) {
+        mListener = listener;
+        if (listener != null) {
+            listener.onTransferProgress(mLastDone, mLastTotal);
+            // Apply a batch that arrived while nobody was listening.
+            applyBatch();
+        }
+    }
+
+    // Stop soon.  Records already imported stay in the library, and a
+    // partial export is deleted.  Must be called from the main thread.
+    public void cancel() {
+        mCancelled = true;
+        synchronized (this) {
+            notify();
+        }
+    }
+
+    private void runExport(List<Phonon> phonons) {
+        final int total = phonons.size();
+        int done = 0;
+        boolean failed = false;
+        Writer out = null;
+        try {
+            final OutputStream os = mResolver.openOutputStream(mUri);
+            if (os == null) {
+                throw new IOException("openOutputStream returned null");
+            }
+            out = new BufferedWriter(new OutputStreamWriter(os, UTF_8));
+            for (Phonon ph : phonons) {
+                if (mCancelled) {
+                    break;
+                }
+                out.write(ph.toJSON());
+                out.write('\n');
+                if (++done % BATCH_SIZE == 0) {
+                    postProgress(done, total);
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Export failed", e);
+            failed = true;
+        } finally {
+            failed |= !closeQuietly(out);
+        }
+        if (mCancelled || failed) {
+            // Don't leave a truncated file that looks like a whole library.
+            deleteDocument();
+        }
+        postFinished(done, 0, failed);
+    }
+
+    private void runImport() {
+        int read = 0;
+        int added = 0;
+        int pending = 0;
+        boolean failed = false;
+        LineReader in = null;
+        try {
+            final InputStream is = mResolver.openInputStream(mUri);
+            if (is == null) {
+                throw new IOException("openInputStream returned null");
+            }
+            in = new LineReader(new InputStreamReader(is, UTF_8));
+            ArrayList<PhononMutable> batch = new ArrayList<>(BATCH_SIZE);
+            int len;
+            while (!mCancelled && (len = in.readLine()) >= 0) {
+                if (len == 0) {
+                    // Blank line.
+                    continue;
+                }
+                read++;
+                final PhononMutable ph = new PhononMutable();
+                if (len > MAX_LINE_CHARS || !ph.loadFromJSON(in.getLine())) {
+                    continue;
+                }
+                batch.add(ph);
+                pending = batch.size();
+                if (pending == BATCH_SIZE) {
+                    added += handOff(batch, read);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                added += handOff(batch, read);
+                pending = 0;
+            }
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Import failed", e);
+            failed = true;
+        } finally {
+            closeQuietly(in);
+        }
+        // Invalid lines, and copies of presets that were already saved.
+        postFinished(added, read - added - pending, failed);
+    }
+
+    // Like BufferedReader.readLine(), but a very long line can't use up
+    // the heap.
+    private static class LineReader implements Closeable {
+        private final Reader mIn;
+        private final char[] mBuf = new char[8192];
+        private int mPos = 0;
+        private int mEnd = 0;
+        private final StringBuilder mLine = new StringBuilder();
+
+        LineReader(Reader in) {
+            mIn = in;
+        }
+
+        // Read the next line, without its terminator.  Returns its full
+        // length, or -1 at the end of the stream.  Only the first
+        // MAX_LINE_CHARS + 1 characters are kept.
+        int readLine() throws IOException {
+            mLine.setLength(0);
+            int len = 0;
+            while (true) {
+                if (mPos == mEnd) {
+                    mEnd = mIn.read(mBuf, 0, mBuf.length);
+                    mPos = 0;
+                    if (mEnd <= 0) {
+                        mEnd = 0;
+                        return len > 0 ? len : -1;
+                    }
+                }
+                final char c = mBuf[mPos++];
+                if (c == '\n') {
+                    return len;
+                }
+                if (c == '\r') {
+                    continue;
+                }
+                if (len++ <= MAX_LINE_CHARS) {
+                    mLine.append(c);
+                }
+            }
+        }
+
+        String getLine() {
+            return mLine.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    // Pass a batch to the main thread, and wait until it's been applied.
+    // Returns how many were added.
+    private int handOff(List<PhononMutable> batch, final int read) {
+        synchronized (this) {
+            mPendingBatch = batch;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                setProgress(read, -1);
+                applyBatch();
+            }
+        });
+        synchronized (this) {
+            while (mPendingBatch != null && !mCancelled) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (mPendingBatch != null) {
+                // Cancelled before the batch was applied.
+                mPendingBatch = null;
+                return 0;
+            }
+            return mBatchAdded;
+        }
+    }
+
+    // Runs on the main thread.  Without a listener, the batch waits for
+    // setListener().
+    private void applyBatch() {
+        final List<PhononMutable> batch;
+        synchronized (this) {
+            batch = mPendingBatch;
+        }
+        if (batch == null || (mListener == null && !mCancelled)) {
+            return;
+        }
+        int added = 0;
+        if (!mCancelled) {
+            added = mListener.onImportBatch(batch);
+        }
+        synchronized (this) {
+            mPendingBatch = null;
+            mBatchAdded = added;
+            notify();
+        }
+    }
+
+    private void postProgress(final int done, final int total) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                setProgress(done, total);
+            }
+        });
+    }
+
+    // Runs on the main thread.
+    private void setProgress(int done, int total) {
+        mLastDone = done;
+        mLastTotal = total;
+        if (mListener != null) {
+            mListener.onTransferProgress(done, total);
+        }
+    }
+
+    private void postFinished(final int done, final int skipped, final boolean failed) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (sActive == PresetTransfer.this) {
+                    sActive = null;
+                }
+                showResult(done, skipped, failed);
+                if (mListener != null) {
+                    mListener.onTransferFinished();
+                }
+            }
+        });
+    }
+
+    // Runs on the main thread.
+    private void showResult(int done, int skipped, boolean failed) {
+        final String msg;
+        if (mIsImport) {
+            if (failed) {
+                msg = mContext.getString(R.string.import_failed, done);
+            } else if (mCancelled) {
+                msg = mContext.getString(R.string.import_cancelled, done);
+            } else {
+                msg = mContext.getString(R.string.imported_presets, done, skipped);
+            }
+        } else {
+            if (failed) {
+                msg = mContext.getString(R.string.export_failed, done);
+            } else if (mCancelled) {
+                msg = mContext.getString(R.string.export_cancelled);
+            } else {
+                msg = mContext.getString(R.string.exported_presets, done);
+            }
+        }
+        Toast.makeText(mContext, msg, Toast.LENGTH_LONG).show();
+    }
+
+    private void deleteDocument() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        try {
+            DocumentsContract.deleteDocument(mResolver, mUri);
+        } catch (Exception e) {
+            // Some providers don't support deletion.
+            Log.w(TAG, "Failed to delete " + mUri, e);
+        }
+    }
+
+    // Returns false if close() failed, which can lose buffered writes.
+    private static boolean closeQuietly(Closeable c) {
+        if (c == null) {
+            return true;
+        }
+        try {
+            c.close();
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "close() failed", e);
+            return false;
+        }
+    }
+}
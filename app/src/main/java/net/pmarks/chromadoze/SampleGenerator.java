@@ -4,27 +4,71 @@ import android.os.Process;
 import android.os.SystemClock;
 
 import org.jtransforms.dct.FloatDCT_1D;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 class SampleGenerator {
     private final NoiseService mNoiseService;
     private final AudioParams mParams;
     private final SampleShuffler mSampleShuffler;
+    private final GenerationScheduler mScheduler;
     private final Thread mWorkerThread;
 
     // Communication variables; must be synchronized.
     private boolean mStopping;
     private SpectrumData mPendingSpectrum;
+    private LatencyProbe.Sample mPendingLatency;
+    private int mPendingChunkLimit = 0;
+    private ChunkLadder mPendingLadder;
+    private boolean mSettingsChanged = false;
+    private boolean mRefreshEnabled = false;
+    private boolean mCheckBattery = true;
+    private boolean mSmoothBandEdges = false;
+
+    // How many LARGE_NOCLIP chunks to transform per batch.  While the user
+    // is changing the spectrum, transform one at a time, so a new spectrum
+    // never waits behind a whole batch.
+    private static final int NOCLIP_BATCH = 4;
+
+    // Threads for the parallel IDCT path.  JTransforms only splits into
+    // 2 or 4 subtrees.  DeviceProfile may turn this down.
+    private int mParallelThreads =
+            Math.min(4, Runtime.getRuntime().availableProcessors());
 
     // Variables accessed from the thread only.
     private int mLastDctSize = -1;
     private FloatDCT_1D mDct;
-    private final XORShiftRandom mRandom = new XORShiftRandom();  // Not thread safe.
+    private final NoiseSource mNoise = new NoiseSource();
+    // The spectrum expanded to one value per DCT bin; see makeEnvelope().
+    private float[] mEnvelope;
+    private SpectrumData mEnvelopeSpectrum;
+    private boolean mEnvelopeSmooth;
+    // Follows the spectrum from popPendingSpectrum() to the first chunk.
+    private LatencyProbe.Sample mPoppedLatency;
+
+    // Statistics; written by the thread, read by dumpStats().
+    private volatile int mStatStage = -1;
+    private volatile int mStatPercent = 100;
+    private volatile int mStatChunkSize = 0;
+    private volatile long mStatDctBytes = 0;
+    private volatile int mStatDiscardedChunks = 0;
+    private volatile int mStatChunkLimit = 0;
+    private volatile String mStatLadder = "";
+    private volatile int mStatRefreshedChunks = 0;
+    private volatile long mStatRefreshCpuMs = 0;
+
+    // Odd while the thread is making a chunk, so DeviceProfile can tell if
+    // a measurement overlapped with it.  Only the thread writes this.
+    private volatile int mWorkSeq = 0;
+    // True once every chunk exists, and only refreshes remain.
+    private volatile boolean mPoolComplete = false;
 
     public SampleGenerator(NoiseService noiseService, AudioParams params,
                            SampleShuffler sampleShuffler) {
         mNoiseService = noiseService;
         mParams = params;
         mSampleShuffler = sampleShuffler;
+        mScheduler = new GenerationScheduler(params.SAMPLE_RATE);
 
         mWorkerThread = new Thread("SampleGeneratorThread") {
             @Override
@@ -49,11 +93,72 @@ class SampleGenerator {
         }
     }
 
-    public synchronized void updateSpectrum(SpectrumData spectrum) {
+    // latency may be null; see LatencyProbe.
+    public synchronized void updateSpectrum(SpectrumData spectrum, LatencyProbe.Sample latency) {
         mPendingSpectrum = spectrum;
+        mPendingLatency = latency;
+        notify();
+    }
+
+    // Change the number of full-size chunks to keep; see ChunkBudget.
+    public synchronized void setChunkLimit(int limit) {
+        mPendingChunkLimit = limit;
+        mSettingsChanged = true;
+        notify();
+    }
+
+    // Switch to a new chunk schedule; see ChunkLadder.
+    public synchronized void setLadder(ChunkLadder ladder) {
+        mPendingLadder = ladder;
+        mSettingsChanged = true;
         notify();
     }
 
+    // Once all chunks exist, keep replacing the oldest-played ones.
+    // Pauses under thermal stress or battery saver, and also while the
+    // battery is low and unplugged if checkBattery is set.
+    public synchronized void setRefreshEnabled(boolean enabled, boolean checkBattery) {
+        if (mRefreshEnabled != enabled || mCheckBattery != checkBattery) {
+            mRefreshEnabled = enabled;
+            mCheckBattery = checkBattery;
+            mSettingsChanged = true;
+            notify();
+        }
+    }
+
+    // Ramp between neighboring bands, instead of a hard step at each edge.
+    public synchronized void setSmoothBandEdges(boolean smooth) {
+        mSmoothBandEdges = smooth;
+    }
+
+    private synchronized boolean getSmoothBandEdges() {
+        return mSmoothBandEdges;
+    }
+
+    public synchronized void setParallelThreads(int threads) {
+        mParallelThreads = Math.max(1, Math.min(4, threads));
+    }
+
+    public int getWorkSeq() {
+        return mWorkSeq;
+    }
+
+    public boolean isPoolComplete() {
+        return mPoolComplete;
+    }
+
+    private synchronized int getParallelThreads() {
+        return mParallelThreads;
+    }
+
+    private synchronized boolean isRefreshEnabled() {
+        return mRefreshEnabled;
+    }
+
+    private synchronized boolean shouldCheckBattery() {
+        return mCheckBattery;
+    }
+
     private void threadLoop() throws StopException {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
@@ -61,53 +166,215 @@ class SampleGenerator {
         final SampleGeneratorState state = new SampleGeneratorState();
         SpectrumData spectrum = null;
         long waitMs = -1;
+        // When to do the next piece of work, in elapsedRealtime().
+        long nextWorkMs = 0;
+        boolean refreshing = false;
+        // The pending latency measurement for the first chunk, if any.
+        LatencyProbe.Sample latency = null;
 
         while (true) {
             // This does one of 3 things:
             // - Throw StopException if stopThread() was called.
-            // - Check if a new spectrum is waiting.
+            // - Check if a new spectrum or setting is waiting.
             // - Block if there's no work to do.
             final SpectrumData newSpectrum = popPendingSpectrum(waitMs);
+
+            // A new schedule starts over with the current spectrum.
+            final ChunkLadder ladder = popPendingLadder();
+            if (ladder != null && !ladder.equals(state.getLadder())) {
+                state.setLadder(ladder);
+                if (spectrum != null) {
+                    nextWorkMs = 0;
+                    mNoiseService.updatePercentAsync(state.getPercent());
+                }
+            }
+
+            // Apply a new memory budget.  Shrinking drops chunks right away,
+            // and growing resumes generation with the current spectrum.
+            final int chunkLimit = popPendingChunkLimit();
+            if (chunkLimit > 0 && chunkLimit != state.getLargeChunkLimit()) {
+                final boolean wasDone = state.done();
+                state.setLargeChunkLimit(chunkLimit);
+                mSampleShuffler.trimChunks(state.getLargeChunkLimit());
+                if (wasDone && !state.done() && spectrum != null) {
+                    nextWorkMs = 0;
+                    mNoiseService.updatePercentAsync(state.getPercent());
+                }
+            }
+
             if (newSpectrum != null && !newSpectrum.sameSpectrum(spectrum)) {
                 spectrum = newSpectrum;
+                latency = mPoppedLatency;
+                if (latency != null) {
+                    latency.mWakeMs = SystemClock.uptimeMillis();
+                }
                 state.reset();
+                nextWorkMs = 0;
+                mScheduler.onInteraction(SystemClock.elapsedRealtime());
                 mNoiseService.updatePercentAsync(state.getPercent());
-            } else if (waitMs == -1) {
-                // Nothing changed.  Keep waiting.
+            }
+
+            // The first refresh waits a full interval after the last chunk.
+            final boolean refresh = spectrum != null && state.done() && isRefreshEnabled();
+            if (refresh && !refreshing) {
+                nextWorkMs = SystemClock.elapsedRealtime() + GenerationScheduler.REFRESH_MIN_INTERVAL_MS;
+            }
+            refreshing = refresh;
+
+            if (spectrum == null || (state.done() && !refresh)) {
+                // No chunks left; save RAM.
+                releaseDct();
+                waitMs = -1;
+                updateStats(state);
                 continue;
             }
 
             final long startMs = SystemClock.elapsedRealtime();
+            if (startMs < nextWorkMs) {
+                // Woke up early.  Keep sleeping.
+                waitMs = nextWorkMs - startMs;
+                continue;
+            }
 
-            // Generate the next chunk of sound.
-            float[] dctData = doIDCT(state.getChunkSize(), spectrum);
-            if (mSampleShuffler.handleChunk(dctData, state.getStage())) {
-                // Not dropped.
-                state.advance();
-                mNoiseService.updatePercentAsync(state.getPercent());
+            mWorkSeq++;
+            if (refresh) {
+                waitMs = refreshChunk(state.getFinalChunkSize(), spectrum);
+            } else {
+                final long startCpuMs = SystemClock.currentThreadTimeMillis();
+                if (state.getStage() == SampleGeneratorState.S_LARGE_NOCLIP) {
+                    generateNoClipBatch(state, spectrum,
+                            mScheduler.isInteractive(startMs) ? 1 : NOCLIP_BATCH);
+                } else {
+                    // Generate the next chunk of sound.
+                    // The user is waiting for the first large chunk, so spread
+                    // its transform across cores.
+                    final boolean parallel = state.getStage() == SampleGeneratorState.S_FIRST_VOLUME;
+                    float[] dctData = doIDCT(state.getChunkSize(), spectrum, parallel);
+                    if (latency != null) {
+                        // The first chunk interrupts playback, and carries the
+                        // measurement from here.
+                        latency.mIdctMs = SystemClock.uptimeMillis();
+                        mSampleShuffler.setLatencySample(latency);
+                        latency = null;
+                    }
+                    handleChunk(state, dctData);
+                }
+
+                // Avoid burning the CPU while the user is scrubbing, or
+                // once the pool is only background work.
+                final long nowMs = SystemClock.elapsedRealtime();
+                mScheduler.samplePlayback(mSampleShuffler.getPlayedFrames(), nowMs);
+                waitMs = mScheduler.getWaitMs(state, nowMs - startMs,
+                        SystemClock.currentThreadTimeMillis() - startCpuMs,
+                        mSampleShuffler.getNeverPlayedCount(), nowMs);
             }
+            mWorkSeq++;
+            nextWorkMs = SystemClock.elapsedRealtime() + waitMs;
+            updateStats(state);
+        }
+    }
 
-            // Avoid burning the CPU while the user is scrubbing.  For the
-            // first couple large chunks, the next chunk should be ready
-            // when this one is ~75% finished playing.
-            final long sleepTargetMs = state.getSleepTargetMs(mParams.SAMPLE_RATE);
-            final long elapsedMs = SystemClock.elapsedRealtime() - startMs;
-            waitMs = sleepTargetMs - elapsedMs;
-            if (waitMs < 0) waitMs = 0;
-            if (waitMs > sleepTargetMs) waitMs = sleepTargetMs;
+    // Pass a chunk to SampleShuffler, and advance if it was accepted.
+    private void handleChunk(SampleGeneratorState state, float[] dctData) {
+        final long handleT = StageTracer.begin(StageTracer.HANDLE_CHUNK);
+        final boolean accepted = mSampleShuffler.handleChunk(dctData, state.getStage());
+        StageTracer.end(StageTracer.HANDLE_CHUNK, handleT);
+        if (accepted) {
+            // Not dropped.
+            state.advance();
+            mNoiseService.updatePercentAsync(state.getPercent());
+        } else {
+            mStatDiscardedChunks++;
+        }
+    }
 
-            if (state.done()) {
-                // No chunks left; save RAM.
-                mDct = null;
-                mLastDctSize = -1;
-                waitMs = -1;
+    // Once the volume is final, nobody is waiting on any particular chunk,
+    // so transform several at once for better cache reuse.
+    private void generateNoClipBatch(SampleGeneratorState state, SpectrumData spectrum,
+                                     int batchSize) {
+        final int count = Math.min(batchSize, state.getRemainingChunks());
+        final float[][] batch = new float[count][];
+        for (int i = 0; i < count; i++) {
+            batch[i] = fillNoise(state.getChunkSize(), spectrum);
+        }
+        final long idctT = StageTracer.begin(StageTracer.IDCT);
+        mDct.setNumberOfThreads(1);
+        mDct.inverse(batch, false);
+        StageTracer.end(StageTracer.IDCT, idctT);
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && hasPendingSpectrum()) {
+                // The rest are stale, and the new spectrum resets the
+                // state anyway.
+                break;
             }
+            final float[] dctData = batch[i];
+            batch[i] = null;
+            handleChunk(state, dctData);
         }
     }
 
+    // Replace the oldest-played chunk with a fresh one, so long sessions
+    // don't loop over the same few seconds of audio all night.
+    // Returns how long to wait before the next refresh.
+    private long refreshChunk(int chunkSize, SpectrumData spectrum) {
+        if (!mNoiseService.isRefreshAllowed(shouldCheckBattery()) ||
+                !mSampleShuffler.hasPlayedChunk()) {
+            // Nothing to do yet, so don't spend the refresh budget.
+            return GenerationScheduler.REFRESH_MIN_INTERVAL_MS;
+        }
+        final long startMs = SystemClock.elapsedRealtime();
+        final long startCpuMs = SystemClock.currentThreadTimeMillis();
+
+        float[] dctData = doIDCT(chunkSize, spectrum, false);
+        final long handleT = StageTracer.begin(StageTracer.HANDLE_CHUNK);
+        if (mSampleShuffler.handleChunk(dctData, SampleGeneratorState.S_REFRESH)) {
+            mStatRefreshedChunks++;
+        } else {
+            mStatDiscardedChunks++;
+        }
+        StageTracer.end(StageTracer.HANDLE_CHUNK, handleT);
+
+        mStatRefreshCpuMs += SystemClock.currentThreadTimeMillis() - startCpuMs;
+        return mScheduler.getRefreshWaitMs(SystemClock.elapsedRealtime() - startMs);
+    }
+
+    private void releaseDct() {
+        mDct = null;
+        mLastDctSize = -1;
+        mEnvelope = null;
+        mEnvelopeSpectrum = null;
+    }
+
+    private void updateStats(SampleGeneratorState state) {
+        mStatStage = state.done() ? -1 : state.getStage();
+        mPoolComplete = state.done();
+        mStatPercent = state.getPercent();
+        mStatChunkSize = state.done() ? 0 : state.getChunkSize();
+        mStatDctBytes = mDct != null ? mDct.getMemoryBytes() : 0;
+        mStatChunkLimit = state.getLargeChunkLimit();
+        mStatLadder = state.getLadder().toString();
+    }
+
+    public void dumpStats(JSONObject out) throws JSONException {
+        final int stage = mStatStage;
+        out.put("stage", stage < 0 ? "DONE" : SampleGeneratorState.stageName(stage));
+        out.put("percent", mStatPercent);
+        out.put("nextChunkSize", mStatChunkSize);
+        out.put("dctPlanBytes", mStatDctBytes);
+        out.put("discardedChunks", mStatDiscardedChunks);
+        out.put("chunkLimit", mStatChunkLimit);
+        out.put("ladder", mStatLadder);
+        out.put("parallelThreads", getParallelThreads());
+        out.put("refreshedChunks", mStatRefreshedChunks);
+        out.put("refreshCpuMs", mStatRefreshCpuMs);
+        final JSONObject scheduler = new JSONObject();
+        mScheduler.dumpStats(scheduler);
+        out.put("scheduler", scheduler);
+    }
+
     private synchronized SpectrumData popPendingSpectrum(long waitMs)
             throws StopException {
-        if (waitMs != 0 && !mStopping && mPendingSpectrum == null) {
+        if (waitMs != 0 && !mStopping && mPendingSpectrum == null && !mSettingsChanged) {
             // Wait once.  The retry loop is in the caller.
             try {
                 if (waitMs < 0) {
@@ -121,6 +388,9 @@ class SampleGenerator {
         if (mStopping) {
             throw new StopException();
         }
+        mSettingsChanged = false;
+        mPoppedLatency = mPendingLatency;
+        mPendingLatency = null;
         try {
             return mPendingSpectrum;
         } finally {
@@ -128,26 +398,68 @@ class SampleGenerator {
         }
     }
 
-    private float[] doIDCT(int dctSize, SpectrumData spectrum) {
+    private synchronized boolean hasPendingSpectrum() {
+        return mPendingSpectrum != null;
+    }
+
+    private synchronized ChunkLadder popPendingLadder() {
+        try {
+            return mPendingLadder;
+        } finally {
+            mPendingLadder = null;
+        }
+    }
+
+    private synchronized int popPendingChunkLimit() {
+        try {
+            return mPendingChunkLimit;
+        } finally {
+            mPendingChunkLimit = 0;
+        }
+    }
+
+    private float[] doIDCT(int dctSize, SpectrumData spectrum, boolean parallel) {
+        float[] dctData = fillNoise(dctSize, spectrum);
+
+        final long idctT = StageTracer.begin(StageTracer.IDCT);
+        // mDct belongs to this thread, so this doesn't affect the other
+        // transforms in the app.
+        mDct.setNumberOfThreads(parallel ? getParallelThreads() : 1);
+        mDct.inverse(dctData, false);
+        StageTracer.end(StageTracer.IDCT, idctT);
+        return dctData;
+    }
+
+    // Make sure mDct has the right size, and return the noise-shaped
+    // spectrum, ready for the inverse transform.
+    private float[] fillNoise(int dctSize, SpectrumData spectrum) {
         if (dctSize != mLastDctSize) {
             mDct = new FloatDCT_1D(dctSize);
             mLastDctSize = dctSize;
         }
+        final float[] envelope = getEnvelope(dctSize, spectrum);
         float[] dctData = new float[dctSize];
 
-        spectrum.fill(dctData, mParams.SAMPLE_RATE);
+        // Multiply the envelope by a block of white noise.
+        final long noiseT = StageTracer.begin(StageTracer.NOISE);
+        mNoise.fill(envelope, dctData);
+        StageTracer.end(StageTracer.NOISE, noiseT);
+        return dctData;
+    }
 
-        // Multiply by a block of white noise.
-        for (int i = 0; i < dctSize; ) {
-            long rand = mRandom.nextLong();
-            for (int b = 0; b < 8; b++) {
-                dctData[i++] *= (byte) rand / 128f;
-                rand >>= 8;
-            }
+    // Expanding the spectrum only needs to happen when the spectrum, chunk
+    // size, or edge mode changes, rather than once per chunk.
+    private float[] getEnvelope(int dctSize, SpectrumData spectrum) {
+        final boolean smooth = getSmoothBandEdges();
+        if (mEnvelope == null || mEnvelope.length != dctSize ||
+                mEnvelopeSpectrum != spectrum || mEnvelopeSmooth != smooth) {
+            final long fillT = StageTracer.begin(StageTracer.SPECTRUM_FILL);
+            mEnvelope = spectrum.makeEnvelope(dctSize, mParams.SAMPLE_RATE, smooth);
+            mEnvelopeSpectrum = spectrum;
+            mEnvelopeSmooth = smooth;
+            StageTracer.end(StageTracer.SPECTRUM_FILL, fillT);
         }
-
-        mDct.inverse(dctData, false);
-        return dctData;
+        return mEnvelope;
     }
 
     private static class StopException extends Exception {
@@ -8,25 +8,68 @@ class SampleGeneratorState {
     public static final int S_OTHER_VOLUME = 3;
     public static final int S_LAST_VOLUME = 4;
     public static final int S_LARGE_NOCLIP = 5;
+    // Replaces an old chunk after done(); see SampleGenerator.refreshChunk().
+    public static final int S_REFRESH = 6;
 
-    // How many small preview chunks to generate at first.
-    private static final int N_SMALL_CHUNKS = 4;
+    public static String stageName(int stage) {
+        switch (stage) {
+            case S_FIRST_SMALL:
+                return "FIRST_SMALL";
+            case S_OTHER_SMALL:
+                return "OTHER_SMALL";
+            case S_FIRST_VOLUME:
+                return "FIRST_VOLUME";
+            case S_OTHER_VOLUME:
+                return "OTHER_VOLUME";
+            case S_LAST_VOLUME:
+                return "LAST_VOLUME";
+            case S_LARGE_NOCLIP:
+                return "LARGE_NOCLIP";
+            case S_REFRESH:
+                return "REFRESH";
+        }
+        return "UNKNOWN(" + stage + ")";
+    }
+
+    // How many chunks of the last rung to use for estimating the global
+    // volume.  This is also the smallest allowed chunk limit.
+    public static final int N_VOLUME_CHUNKS = 4;
 
-    // How many final full-size chunks to generate.
-    private static final int N_LARGE_CHUNKS = 20;
+    private ChunkLadder mLadder = ChunkLadder.DEFAULT;
+
+    // Upper limit on chunks in the last rung; see ChunkBudget.
+    private int mChunkLimit = Integer.MAX_VALUE;
+
+    // Begin in the "done" state.
+    private int mChunkNumber = Integer.MAX_VALUE;
 
     // How many chunks overall.
-    private static final int N_TOTAL_CHUNKS = N_SMALL_CHUNKS + N_LARGE_CHUNKS;
+    private int getTotalChunks() {
+        return mLadder.getPreviewChunks() + getLargeChunkLimit();
+    }
+
+    // Switch to a new schedule.  Existing chunks don't match it, so this
+    // also starts over.
+    public void setLadder(ChunkLadder ladder) {
+        mLadder = ladder;
+        reset();
+    }
 
-    // How many large chunks to use for estimating the global volume.
-    private static final int N_VOLUME_CHUNKS = 4;
+    public ChunkLadder getLadder() {
+        return mLadder;
+    }
 
-    // Size of small/large chunks, in samples.
-    private static final int SMALL_CHUNK_SIZE = 8192;
-    private static final int LARGE_CHUNK_SIZE = 65536;
+    // Change the number of final chunks.  When shrinking, this forgets
+    // the excess chunks, so the caller must trim SampleShuffler to match
+    // getLargeChunkLimit().  When growing, done() may become false again.
+    public void setLargeChunkLimit(int limit) {
+        mChunkLimit = limit;
+        mChunkNumber = Math.min(mChunkNumber, getTotalChunks());
+    }
 
-    // Begin in the "done" state.
-    private int mChunkNumber = N_TOTAL_CHUNKS;
+    public int getLargeChunkLimit() {
+        return Math.max(N_VOLUME_CHUNKS, Math.min(mChunkLimit, mLadder.getFinalCount()));
+    }
 
     public void reset() {
         mChunkNumber = 0;
@@ -36,48 +79,77 @@ class SampleGeneratorState {
         mChunkNumber++;
     }
 
+    public int getRemainingChunks() {
+        return Math.max(0, getTotalChunks() - mChunkNumber);
+    }
+
     public boolean done() {
-        return mChunkNumber >= N_TOTAL_CHUNKS;
+        return mChunkNumber >= getTotalChunks();
     }
 
     public int getStage() {
-        if (mChunkNumber < N_SMALL_CHUNKS) {
-            // Small chunk.
-            switch (mChunkNumber) {
-                case 0:
-                    return S_FIRST_SMALL;
-                default:
-                    return S_OTHER_SMALL;
+        final int preview = mLadder.getPreviewChunks();
+        if (mChunkNumber == 0) {
+            // Replaces whatever was playing before.
+            return S_FIRST_SMALL;
+        } else if (mChunkNumber < preview) {
+            // Preview chunk.  Each rung starts over with its own chunks.
+            return rungIndex() == 0 ? S_FIRST_VOLUME : S_OTHER_SMALL;
+        }
+        // Final chunk, with volume computation for the first few.
+        final int i = mChunkNumber - preview;
+        if (i == 0) {
+            return S_FIRST_VOLUME;
+        } else if (i < N_VOLUME_CHUNKS - 1) {
+            return S_OTHER_VOLUME;
+        } else if (i == N_VOLUME_CHUNKS - 1) {
+            return S_LAST_VOLUME;
+        }
+        // Volume already set.
+        return S_LARGE_NOCLIP;
+    }
+
+    // Position of the current chunk within its rung.
+    private int rungIndex() {
+        int i = mChunkNumber;
+        for (int rung = 0; rung < mLadder.getRungCount() - 1; rung++) {
+            if (i < mLadder.getCount(rung)) {
+                return i;
             }
-        } else if (mChunkNumber < N_SMALL_CHUNKS + N_VOLUME_CHUNKS) {
-            // Large chunk, with volume computation.
-            switch (mChunkNumber) {
-                case N_SMALL_CHUNKS:
-                    return S_FIRST_VOLUME;
-                case N_SMALL_CHUNKS + N_VOLUME_CHUNKS - 1:
-                    return S_LAST_VOLUME;
-                default:
-                    return S_OTHER_VOLUME;
+            i -= mLadder.getCount(rung);
+        }
+        return i;
+    }
+
+    private int rung() {
+        int i = mChunkNumber;
+        for (int rung = 0; rung < mLadder.getRungCount() - 1; rung++) {
+            if (i < mLadder.getCount(rung)) {
+                return rung;
             }
-        } else {
-            // Large chunk, volume already set.
-            return S_LARGE_NOCLIP;
+            i -= mLadder.getCount(rung);
         }
+        return mLadder.getRungCount() - 1;
     }
 
     public int getPercent() {
-        return mChunkNumber * 100 / N_TOTAL_CHUNKS;
+        return (int) Math.min(100, (long) mChunkNumber * 100 / getTotalChunks());
     }
 
     public int getChunkSize() {
-        return mChunkNumber < N_SMALL_CHUNKS ? SMALL_CHUNK_SIZE : LARGE_CHUNK_SIZE;
+        return mLadder.getSize(rung());
+    }
+
+    public int getFinalChunkSize() {
+        return mLadder.getFinalSize();
     }
 
-    // For the first couple large chunks, returns 75% of the chunk duration.
+    // For the first few final chunks, returns the ladder's pace percentage
+    // of the chunk duration.
     public long getSleepTargetMs(int sampleRate) {
-        final int i = mChunkNumber - N_SMALL_CHUNKS;
-        if (0 <= i && i < 2) {
-            return 750 * LARGE_CHUNK_SIZE / sampleRate;
+        final int i = mChunkNumber - mLadder.getPreviewChunks();
+        if (0 <= i && i < mLadder.getPaceChunks()) {
+            return 10L * mLadder.getPacePercent() * mLadder.getFinalSize() / sampleRate;
         }
         return 0;
     }
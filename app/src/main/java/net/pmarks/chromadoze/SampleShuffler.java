@@ -1,13 +1,17 @@
 package net.pmarks.chromadoze;
 
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.os.Build;
 import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.util.ArrayList;
 import java.util.List;
-import java.util.NoSuchElementException;
 
 /* Crossfade notes:
 
@@ -32,6 +36,8 @@ class SampleShuffler {
     private static final int SINE_LEN = 1 << 12;
     // FADE_LEN follows the "interior", excluding 0 or 1 values.
     private static final int FADE_LEN = SINE_LEN - 1;
+    // Every chunk needs room for a fade-in and a fade-out.
+    public static final int MIN_CHUNK_SIZE = 2 * FADE_LEN;
     private static final float BASE_AMPLITUDE = 20000;
     private static final float CLIP_AMPLITUDE = 23000;  // 32K/sqrt(2)
 
@@ -69,6 +75,12 @@ class SampleShuffler {
     private short mChunk0[];
     private short mChunk1[];
     private short mAlternateFuture[] = null;
+    private long mPlayCounter = 0;
+
+    // Latency measurements (see LatencyProbe).  The next exchangeChunk()
+    // picks up mPendingLatency, and passes it to the playback thread.
+    private LatencyProbe.Sample mPendingLatency = null;
+    private LatencyProbe.Sample mLatencyHandoff = null;
 
     private AmpWave mAmpWave = new AmpWave(1f, 0f);
 
@@ -103,101 +115,80 @@ class SampleShuffler {
         return mPlaybackThread;
     }
 
-    public synchronized void setAmpWave(float minVol, float period) {
-        if (mAmpWave.mMinVol != minVol || mAmpWave.mPeriod != period) {
-            mAmpWave = new AmpWave(minVol, period);
-        }
+    // Trade latency for underrun protection; see PowerPolicy.
+    public void setLargeBuffer(boolean large) {
+        mPlaybackThread.setLargeBuffer(large);
     }
 
-    // This class keeps track of a set of numbers, and dishes them out in
-    // a random order, while maintaining a minimum distance between two
-    // occurrences of the same number.
-    private static class ShuffleBag {
-        // Chunks that have never been played before, in arbitrary order.
-        private final List<Integer> newQueue = new ArrayList<>();
-        // Recent chunks sit here to avoid being played too soon.
-        private final List<Integer> feederQueue = new ArrayList<>();
-        // Randomly draw chunks from here.
-        private List<Integer> drawPile = new ArrayList<>();
-        // Chunks go here once they've been played.
-        private List<Integer> discardPile = new ArrayList<>();
-
-        private final XORShiftRandom mRandom = new XORShiftRandom();  // Not thread safe.
-
-        public void clear() {
-            newQueue.clear();
-            feederQueue.clear();
-            drawPile.clear();
-            discardPile.clear();
-        }
-
-        public void put(int x, boolean neverPlayed) {
-            // Put never-played chunks into the newQueue.
-            // There's no ideal place for the old chunks, but drawPile is simplest.
-            (neverPlayed ? newQueue : drawPile).add(x);
-        }
-
-        public int getNext() {
-            if (!newQueue.isEmpty()) {
-                return discard(pop(newQueue));
-            }
-            if (drawPile.isEmpty()) {
-                if (!feederQueue.isEmpty()) {
-                    throw new IllegalStateException();
-                }
-                // Everything is now in discardPile.  Move the recently-played chunks
-                // to feederQueue.  Note that pop(feederQueue) will yield chunks in
-                // the same order they were discarded.
-                final int feederSize = discardPile.size() / 2;
-                for (int i = 0; i < feederSize; i++) {
-                    feederQueue.add(pop(discardPile));
-                }
-                // Move everything else to the drawPile.
-                final List<Integer> empty = drawPile;
-                drawPile = discardPile;
-                discardPile = empty;
-            }
-            if (drawPile.isEmpty()) {
-                throw new NoSuchElementException();
-            }
-            final int pos = mRandom.nextInt(drawPile.size());
-            final int ret = drawPile.get(pos);
-            if (!feederQueue.isEmpty()) {
-                // Overwrite the vacant space.
-                drawPile.set(pos, pop(feederQueue));
-            } else {
-                // Move last element to the vacant space.
-                try {
-                    drawPile.set(pos, pop(drawPile));
-                } catch (IndexOutOfBoundsException e) {
-                    // Last element *was* the vacant space.
+    public void dumpStats(JSONObject out) throws JSONException {
+        synchronized (this) {
+            int chunkCount = 0;
+            int neverPlayed = 0;
+            long pcmBytes = 0;
+            long floatBytes = 0;
+            if (mAudioChunks != null) {
+                for (AudioChunk c : mAudioChunks) {
+                    chunkCount++;
+                    if (c.neverPlayed()) neverPlayed++;
+                    pcmBytes += c.getPcmBytes();
+                    floatBytes += c.getFloatBytes();
                 }
             }
-            return discard(ret);
-        }
+            out.put("chunkCount", chunkCount);
+            out.put("neverPlayedChunks", neverPlayed);
+            out.put("pcmBytes", pcmBytes);
+            out.put("floatBytes", floatBytes);
+            out.put("globalVolumeFactor", (double) mGlobalVolumeFactor);
+            out.put("ampWaveMinVol", (double) mAmpWave.mMinVol);
+            out.put("ampWavePeriodSec", (double) mAmpWave.mPeriod);
+        }
+        JSONObject playback = new JSONObject();
+        mPlaybackThread.dumpStats(playback);
+        out.put("playback", playback);
+    }
 
-        private int discard(int x) {
-            discardPile.add(x);
-            return x;
+    // How many chunks playback hasn't reached yet.
+    public synchronized int getNeverPlayedCount() {
+        int count = 0;
+        if (mAudioChunks != null) {
+            for (AudioChunk c : mAudioChunks) {
+                if (c.neverPlayed()) count++;
+            }
         }
+        return count;
+    }
+
+    // Frames handed to the AudioTrack so far.
+    public long getPlayedFrames() {
+        return mPlaybackThread.mPlayedFrames;
+    }
 
-        private static int pop(List<Integer> list) {
-            return list.remove(list.size() - 1);
+    // The next chunk that interrupts playback carries this measurement.
+    public synchronized void setLatencySample(LatencyProbe.Sample latency) {
+        mPendingLatency = latency;
+    }
+
+    public synchronized void setAmpWave(float minVol, float period) {
+        if (mAmpWave.mMinVol != minVol || mAmpWave.mPeriod != period) {
+            mAmpWave = new AmpWave(minVol, period);
         }
     }
 
     private static class AudioChunk {
         private boolean mNeverPlayed = true;
+        // Value of mPlayCounter when this chunk last started playing.
+        private long mLastPlayed = 0;
         private float[] mFloatData;
         private short[] mPcmData;
         private float mMaxAmplitude;
 
         public AudioChunk(float[] floatData) {
             mFloatData = floatData;
-            computeMaxAmplitude();
+            mMaxAmplitude = -1;  // Unknown.
         }
 
-        // Figure out the max amplitude of this chunk once.
+        // Figure out the max amplitude of this chunk once.  Normally this
+        // falls out of buildPcmData(), but some stages need it beforehand.
         private void computeMaxAmplitude() {
             mMaxAmplitude = 1;  // Prevent division by zero.
             for (float sample : mFloatData) {
@@ -207,35 +198,55 @@ class SampleShuffler {
         }
 
         public float getMaxAmplitude() {
+            if (mMaxAmplitude < 0) {
+                computeMaxAmplitude();
+            }
             return mMaxAmplitude;
         }
 
+        // Find the peak, apply the fades, and quantize, in a single pass
+        // over the float data.
         public void buildPcmData(float volumeFactor) {
-            final int len = mFloatData.length;
+            final float[] data = mFloatData;
+            final int len = data.length;
             if (len < FADE_LEN * 2) {
                 throw new IllegalArgumentException("Undersized chunk: " + len);
             }
-            mPcmData = new short[len];
+            final short[] pcm = new short[len];
+            float peak = 1;  // Prevent division by zero.
             for (int i = 0; i < FADE_LEN; i++) {
+                final float sample = data[i];
+                peak = Math.max(peak, Math.abs(sample));
                 // Fade in using sin(x), x=(0,pi/2)
-                float fadeFactor = SINE[i + 1];
-                mPcmData[i] = (short) (mFloatData[i] * volumeFactor * fadeFactor);
+                pcm[i] = (short) (sample * volumeFactor * SINE[i + 1]);
             }
             for (int i = FADE_LEN; i < len - FADE_LEN; i++) {
-                mPcmData[i] = (short) (mFloatData[i] * volumeFactor);
+                final float sample = data[i];
+                peak = Math.max(peak, Math.abs(sample));
+                pcm[i] = (short) (sample * volumeFactor);
             }
-            for (int i = len - FADE_LEN; i < len; i++) {
-                int j = i - (len - FADE_LEN);
+            for (int i = len - FADE_LEN, j = 0; i < len; i++, j++) {
+                final float sample = data[i];
+                peak = Math.max(peak, Math.abs(sample));
                 // Fade out using cos(x), x=(0,pi/2)
-                float fadeFactor = SINE[SINE_LEN + j + 1];
-                mPcmData[i] = (short) (mFloatData[i] * volumeFactor * fadeFactor);
+                pcm[i] = (short) (sample * volumeFactor * SINE[SINE_LEN + j + 1]);
             }
+            mPcmData = pcm;
+            mMaxAmplitude = peak;
         }
 
         public boolean neverPlayed() {
             return mNeverPlayed;
         }
 
+        public long getPcmBytes() {
+            return mPcmData != null ? 2L * mPcmData.length : 0;
+        }
+
+        public long getFloatBytes() {
+            return mFloatData != null ? 4L * mFloatData.length : 0;
+        }
+
         public short[] getPcmData() {
             mNeverPlayed = false;
             return mPcmData;
@@ -266,6 +277,8 @@ class SampleShuffler {
                 return true;
             case SampleGeneratorState.S_LARGE_NOCLIP:
                 return handleChunkNoClip(newChunk);
+            case SampleGeneratorState.S_REFRESH:
+                return handleChunkRefresh(newChunk);
         }
         throw new RuntimeException("Invalid stage");
     }
@@ -277,11 +290,13 @@ class SampleShuffler {
     }
 
     // Add a new chunk.  If it would clip, make everything quieter.
+    // The PCM data is built first, because that also finds the peak.
     private void handleChunkAdaptVolume(AudioChunk newChunk) {
+        withPcm(newChunk);
         if (newChunk.getMaxAmplitude() * mGlobalVolumeFactor > CLIP_AMPLITUDE) {
             changeGlobalVolume(newChunk.getMaxAmplitude(), newChunk);
         } else {
-            addChunk(withPcm(newChunk));
+            addChunk(newChunk);
         }
     }
 
@@ -305,17 +320,36 @@ class SampleShuffler {
 
     // Add a new chunk.  If it clips, discard it and ask for another.
     private boolean handleChunkNoClip(AudioChunk newChunk) {
-        if (newChunk.getMaxAmplitude() * mGlobalVolumeFactor > CLIP_AMPLITUDE) {
+        if (!withFinalPcm(newChunk)) {
             return false;
-        } else {
-            addChunk(withPcm(newChunk));
-            return true;
         }
+        addChunk(newChunk);
+        return true;
+    }
+
+    // Replace the chunk that played longest ago.  The global volume is
+    // already final, so a chunk that would clip is discarded.  Returns
+    // false if the chunk was discarded.
+    private boolean handleChunkRefresh(AudioChunk newChunk) {
+        if (!withFinalPcm(newChunk)) {
+            return false;
+        }
+        return replaceOldestChunk(newChunk);
+    }
+
+    // Once the global volume is final, the float data is only needed for
+    // the single pass that builds the PCM data.  Returns false if the
+    // chunk would clip.
+    private boolean withFinalPcm(AudioChunk chunk) {
+        withPcm(chunk);
+        chunk.purgeFloatData();
+        return chunk.getMaxAmplitude() * mGlobalVolumeFactor <= CLIP_AMPLITUDE;
     }
 
     // Recompute all chunks with a new volume level.
     // Add a new one first, so the chunk list is never completely empty.
     private void changeGlobalVolume(float maxAmplitude, AudioChunk newChunk) {
+        final long volumeT = StageTracer.begin(StageTracer.CHANGE_VOLUME);
         mGlobalVolumeFactor = BASE_AMPLITUDE / maxAmplitude;
         List<AudioChunk> oldChunks = exchangeChunk(withPcm(newChunk), false);
         List<AudioChunk> playedChunks = new ArrayList<>();
@@ -332,10 +366,13 @@ class SampleShuffler {
         for (AudioChunk c : playedChunks) {
             addChunk(withPcm(c));
         }
+        StageTracer.end(StageTracer.CHANGE_VOLUME, volumeT);
     }
 
     private AudioChunk withPcm(AudioChunk chunk) {
+        final long pcmT = StageTracer.begin(StageTracer.BUILD_PCM);
         chunk.buildPcmData(mGlobalVolumeFactor);
+        StageTracer.end(StageTracer.BUILD_PCM, pcmT);
         return chunk;
     }
 
@@ -347,7 +384,44 @@ class SampleShuffler {
     }
 
     private synchronized short[] getRandomChunk() {
-        return mAudioChunks.get(mShuffleBag.getNext()).getPcmData();
+        final AudioChunk chunk = mAudioChunks.get(mShuffleBag.getNext());
+        chunk.mLastPlayed = ++mPlayCounter;
+        return chunk.getPcmData();
+    }
+
+    // Swap a new chunk into the slot of the oldest-played chunk.  The
+    // ShuffleBag refers to chunks by index, so it doesn't need to change.
+    // Returns false if no chunk has played yet, so nothing was replaced.
+    private synchronized boolean replaceOldestChunk(AudioChunk chunk) {
+        if (mAudioChunks == null) {
+            return false;
+        }
+        int oldest = -1;
+        for (int i = 0; i < mAudioChunks.size(); i++) {
+            final AudioChunk c = mAudioChunks.get(i);
+            if (!c.neverPlayed() &&
+                    (oldest == -1 || c.mLastPlayed < mAudioChunks.get(oldest).mLastPlayed)) {
+                oldest = i;
+            }
+        }
+        if (oldest == -1) {
+            return false;
+        }
+        mAudioChunks.set(oldest, chunk);
+        return true;
+    }
+
+    // True if replaceOldestChunk() would have something to replace.
+    public synchronized boolean hasPlayedChunk() {
+        if (mAudioChunks == null) {
+            return false;
+        }
+        for (AudioChunk c : mAudioChunks) {
+            if (!c.neverPlayed()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private synchronized void addChunk(AudioChunk chunk) {
@@ -356,6 +430,24 @@ class SampleShuffler {
         mShuffleBag.put(pos, chunk.neverPlayed());
     }
 
+    // How many other chunks must play before a chunk can repeat.  Negative
+    // means half of the chunks.
+    public synchronized void setMinRepeatDistance(int distance) {
+        mShuffleBag.setMinRepeatDistance(distance);
+    }
+
+    // Drop the newest chunks until at most maxChunks remain, to free memory.
+    // Chunks that are currently playing stay alive until they finish.
+    public synchronized void trimChunks(int maxChunks) {
+        if (mAudioChunks == null || mAudioChunks.size() <= maxChunks) {
+            return;
+        }
+        while (mAudioChunks.size() > maxChunks) {
+            mAudioChunks.remove(mAudioChunks.size() - 1);
+        }
+        mShuffleBag.truncate(maxChunks);
+    }
+
     private synchronized List<AudioChunk> exchangeChunk(AudioChunk chunk, boolean notify) {
         if (notify) {
             if (mAudioChunks != null && mAlternateFuture == null) {
@@ -367,6 +459,11 @@ class SampleShuffler {
                 mAlternateFuture = peek;
             }
             resetFillState(null);
+            if (mPendingLatency != null) {
+                mPendingLatency.mExchangeMs = SystemClock.uptimeMillis();
+                mLatencyHandoff = mPendingLatency;
+                mPendingLatency = null;
+            }
         }
         List<AudioChunk> oldChunks = mAudioChunks;
         mAudioChunks = new ArrayList<>();
@@ -544,8 +641,17 @@ class SampleShuffler {
 
         private boolean mPreventStart = false;
         private AudioTrack mTrack;
+        private boolean mReleased = false;
         private DuckLevel mDuckLevel = DuckLevel.NORMAL;
         private float mVolumeLevel = 1f;
+        private boolean mLargeBuffer = false;
+        // Written by this thread only.
+        private volatile long mPlayedFrames = 0;
+
+        // Only touched by this thread.  The latency measurement waiting
+        // for its first frame to play.
+        private LatencyProbe.Sample mLatency = null;
+        private AudioTimestamp mTimestamp = null;
 
         private synchronized boolean startPlaying() {
             if (mPreventStart || mTrack != null) {
@@ -557,6 +663,7 @@ class SampleShuffler {
             for (int i = 1; ; i++) {
                 mTrack = mParams.makeAudioTrack();
                 setVolumeInternal();
+                setBufferSizeInternal();
                 try {
                     mTrack.play();
                     return true;
@@ -594,6 +701,59 @@ class SampleShuffler {
             }
         }
 
+        public synchronized void setLargeBuffer(boolean large) {
+            if (mLargeBuffer != large) {
+                mLargeBuffer = large;
+                if (mTrack != null && !mReleased) {
+                    setBufferSizeInternal();
+                }
+            }
+        }
+
+        // The initial buffer is BUF_SAMPLES, regardless of TRACK_BYTES.
+        private void setBufferSizeInternal() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                mTrack.setBufferSizeInFrames(mLargeBuffer ?
+                        mParams.TRACK_BYTES / AudioParams.BYTES_PER_SAMPLE : mParams.BUF_SAMPLES);
+            }
+        }
+
+        public synchronized void dumpStats(JSONObject out) throws JSONException {
+            out.put("started", mTrack != null);
+            out.put("largeBuffer", mLargeBuffer);
+            out.put("released", mReleased);
+            out.put("duckLevel", mDuckLevel.name());
+            out.put("volumeLevel", (double) mVolumeLevel);
+            if (mTrack == null || mReleased) {
+                return;
+            }
+            out.put("playbackHeadFrames", mTrack.getPlaybackHeadPosition());
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                out.put("underruns", mTrack.getUnderrunCount());
+                out.put("bufferFrames", mTrack.getBufferSizeInFrames());
+            }
+        }
+
+        // Finish the latency measurement once its first frame has played.
+        // The head position only moves in steps, so when possible, use the
+        // AudioTimestamp to find out when that frame actually played.
+        private void checkLatency() {
+            final long head = mTrack.getPlaybackHeadPosition() & 0xffffffffL;
+            if (head < mLatency.mFrame) {
+                return;
+            }
+            long playedMs = SystemClock.uptimeMillis();
+            if (mTimestamp != null && mTrack.getTimestamp(mTimestamp) &&
+                    mTimestamp.framePosition >= mLatency.mFrame) {
+                final long framesLate = mTimestamp.framePosition - mLatency.mFrame;
+                final long playedNs = mTimestamp.nanoTime -
+                        framesLate * 1000000000L / mParams.SAMPLE_RATE;
+                playedMs -= (System.nanoTime() - playedNs) / 1000000;
+            }
+            LatencyProbe.onPlayed(mLatency, playedMs);
+            mLatency = null;
+        }
+
         @SuppressWarnings("deprecation")
         private void setVolumeCompat(AudioTrack mTrack, float v) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -637,24 +797,59 @@ class SampleShuffler {
             final short[] buf = new short[Math.max(mParams.BUF_SAMPLES / 2, FADE_LEN) *
                     AudioParams.SHORTS_PER_SAMPLE];
             AmpWave oldAmpWave = null;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                mTimestamp = new AudioTimestamp();
+            }
             int result;
             do {
-                AmpWave newAmpWave = fillBuffer(buf);
+                AmpWave newAmpWave;
+                LatencyProbe.Sample latency;
+                // Trace the lock wait separately, because the generator
+                // thread may be holding it during exchangeChunk().
+                final long lockT = StageTracer.begin(StageTracer.SHUFFLER_LOCK);
+                synchronized (SampleShuffler.this) {
+                    StageTracer.end(StageTracer.SHUFFLER_LOCK, lockT);
+                    final long fillT = StageTracer.begin(StageTracer.FILL_BUFFER);
+                    newAmpWave = fillBuffer(buf);
+                    StageTracer.end(StageTracer.FILL_BUFFER, fillT);
+                    // The new chunk starts at buf[0].
+                    latency = mLatencyHandoff;
+                    mLatencyHandoff = null;
+                }
+                final long ampT = StageTracer.begin(StageTracer.AMP_WAVE);
                 newAmpWave.copyOldPosition(oldAmpWave);
                 newAmpWave.mutateBuffer(buf, false);
                 oldAmpWave = newAmpWave;
                 if (fadeIn != null && fadeIn.mutateBuffer(buf, true)) {
                     fadeIn = null;
                 }
+                StageTracer.end(StageTracer.AMP_WAVE, ampT);
+                SpectrumTap.write(buf, buf.length, mParams.SAMPLE_RATE);
+                if (latency != null) {
+                    latency.mWriteMs = SystemClock.uptimeMillis();
+                    latency.mFrame = mPlayedFrames;
+                    mLatency = latency;
+                }
                 // AudioTrack will write everything, unless it's been stopped.
+                final long writeT = StageTracer.begin(StageTracer.TRACK_WRITE);
                 result = mTrack.write(buf, 0, buf.length);
+                StageTracer.end(StageTracer.TRACK_WRITE, writeT);
+                if (result > 0) {
+                    mPlayedFrames += result / AudioParams.SHORTS_PER_SAMPLE;
+                }
+                if (mLatency != null) {
+                    checkLatency();
+                }
             } while (result == buf.length);
 
             if (result < 0) {
                 Log.w("PlaybackThread", "write() failed: " + result);
             }
 
-            mTrack.release();
+            synchronized (this) {
+                mTrack.release();
+                mReleased = true;
+            }
         }
     }
 }
@@ -0,0 +1,147 @@
+package net.pmarks.chromadoze;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+// This class keeps track of a set of numbers, and dishes them out in
+// a random order, while maintaining a minimum distance between two
+// occurrences of the same number.
+//
+// Everything lives in primitive arrays, so getNext() is O(1) and never
+// allocates.  Each number is in exactly one of three places:
+// - newStack: never played, and will be played before anything else.
+// - avail: eligible to be drawn at random.
+// - recent: a FIFO of recently-played numbers, which return to avail
+//   once they're far enough in the past.
+class ShuffleBag {
+    private int[] mNewStack = new int[0];
+    private int mNewCount = 0;
+
+    private int[] mAvail = new int[0];
+    private int mAvailCount = 0;
+
+    // Ring buffer; mRecentHead is the oldest entry.
+    private int[] mRecent = new int[0];
+    private int mRecentHead = 0;
+    private int mRecentCount = 0;
+
+    // How many other numbers must be drawn before a number can repeat.
+    // Negative means "half of the bag".
+    private int mMinDistance = -1;
+
+    private final XORShiftRandom mRandom = new XORShiftRandom();  // Not thread safe.
+
+    public void clear() {
+        mNewCount = 0;
+        mAvailCount = 0;
+        mRecentHead = 0;
+        mRecentCount = 0;
+    }
+
+    public int size() {
+        return mNewCount + mAvailCount + mRecentCount;
+    }
+
+    // Never-played numbers are dished out first, in LIFO order.
+    // There's no ideal place for the old ones, but avail is simplest.
+    public void put(int x, boolean neverPlayed) {
+        if (x < 0) {
+            throw new IllegalArgumentException("Negative: " + x);
+        }
+        ensureCapacity(size() + 1);
+        if (neverPlayed) {
+            mNewStack[mNewCount++] = x;
+        } else {
+            mAvail[mAvailCount++] = x;
+        }
+    }
+
+    // Negative restores the default of half the bag.  Survives clear().
+    public void setMinRepeatDistance(int distance) {
+        mMinDistance = distance;
+        trimRecent();
+    }
+
+    public int getNext() {
+        final int ret;
+        if (mNewCount > 0) {
+            ret = mNewStack[--mNewCount];
+        } else {
+            if (mAvailCount == 0) {
+                if (mRecentCount == 0) {
+                    throw new NoSuchElementException();
+                }
+                // The distance is too large for the bag; relax it.
+                releaseOldest();
+            }
+            final int pos = mRandom.nextInt(mAvailCount);
+            ret = mAvail[pos];
+            // Move last element to the vacant space.
+            mAvail[pos] = mAvail[--mAvailCount];
+        }
+        mRecent[(mRecentHead + mRecentCount) % mRecent.length] = ret;
+        mRecentCount++;
+        trimRecent();
+        return ret;
+    }
+
+    // Forget every number >= limit.
+    public void truncate(int limit) {
+        mNewCount = filter(mNewStack, mNewCount, limit);
+        mAvailCount = filter(mAvail, mAvailCount, limit);
+        int kept = 0;
+        for (int i = 0; i < mRecentCount; i++) {
+            final int x = mRecent[(mRecentHead + i) % mRecent.length];
+            if (x < limit) {
+                mRecent[(mRecentHead + kept) % mRecent.length] = x;
+                kept++;
+            }
+        }
+        mRecentCount = kept;
+    }
+
+    private static int filter(int[] array, int count, int limit) {
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (array[i] < limit) {
+                array[kept++] = array[i];
+            }
+        }
+        return kept;
+    }
+
+    private int getMinDistance() {
+        final int n = size();
+        final int d = mMinDistance < 0 ? n / 2 : mMinDistance;
+        return Math.min(d, n - 1);
+    }
+
+    private void trimRecent() {
+        final int d = Math.max(getMinDistance(), 0);
+        while (mRecentCount > d) {
+            releaseOldest();
+        }
+    }
+
+    private void releaseOldest() {
+        mAvail[mAvailCount++] = mRecent[mRecentHead];
+        mRecentHead = (mRecentHead + 1) % mRecent.length;
+        mRecentCount--;
+    }
+
+    // Grow the arrays to hold `count` numbers.
+    private void ensureCapacity(int count) {
+        if (count > mAvail.length) {
+            final int cap = Math.max(count, Math.max(16, mAvail.length * 2));
+            mNewStack = Arrays.copyOf(mNewStack, cap);
+            mAvail = Arrays.copyOf(mAvail, cap);
+            // Unwrap the ring while copying it.
+            final int[] recent = new int[cap];
+            for (int i = 0; i < mRecentCount; i++) {
+                recent[i] = mRecent[(mRecentHead + i) % mRecent.length];
+            }
+            mRecent = recent;
+            mRecentHead = 0;
+        }
+    }
+}
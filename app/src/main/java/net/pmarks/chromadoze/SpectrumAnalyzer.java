@@ -0,0 +1,167 @@
+package net.pmarks.chromadoze;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.jtransforms.dct.FloatDCT_1D;
+
+// SpectrumAnalyzer turns SpectrumTap windows into one level per band, for
+// drawing next to the target bars.  It runs only between start() and
+// stop(), which the UI calls while it's visible.
+//
+// Each level is log1000(amplitude), relative to the loudest band, so 0
+// is the loudest band and -1 is 60dB quieter.  This is the same scale as
+// the bars, minus an offset that depends on the volume.
+class SpectrumAnalyzer {
+    private static final int BAND_COUNT = SpectrumData.BAND_COUNT;
+    private static final int WINDOW = SpectrumTap.WINDOW;
+
+    private static final long INTERVAL_MS = 100;
+    // With no new audio for this long, tell the listener to stop drawing.
+    private static final long STALE_MS = 500;
+    // Fraction of the old level that remains after each update.
+    private static final float SMOOTHING = 0.5f;
+    private static final float FLOOR = -2f;
+
+    public interface Listener {
+        // Runs on the main thread.  levels is null when nothing is playing,
+        // and is reused by the next call.
+        void onSpectrum(float[] levels);
+    }
+
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private AnalyzerThread mThread = null;
+
+    // Handed from the analyzer thread to the main thread.
+    private final float[] mShared = new float[BAND_COUNT];
+    private boolean mSharedValid = false;
+    private final float[] mUiLevels = new float[BAND_COUNT];
+
+    private final Runnable mDeliver = new Runnable() {
+        @Override
+        public void run() {
+            final boolean valid;
+            synchronized (mShared) {
+                valid = mSharedValid;
+                System.arraycopy(mShared, 0, mUiLevels, 0, BAND_COUNT);
+            }
+            if (mThread != null) {
+                mListener.onSpectrum(valid ? mUiLevels : null);
+            }
+        }
+    };
+
+    SpectrumAnalyzer(Listener listener) {
+        mListener = listener;
+    }
+
+    // Must be called from the main thread.
+    public void start() {
+        if (mThread == null) {
+            mThread = new AnalyzerThread();
+            mThread.start();
+        }
+    }
+
+    // Must be called from the main thread.  The listener won't hear
+    // anything more until the next start().
+    public void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+            mHandler.removeCallbacks(mDeliver);
+        }
+    }
+
+    private void publish(float[] levels) {
+        synchronized (mShared) {
+            mSharedValid = (levels != null);
+            if (levels != null) {
+                System.arraycopy(levels, 0, mShared, 0, BAND_COUNT);
+            }
+        }
+        mHandler.post(mDeliver);
+    }
+
+    private class AnalyzerThread extends Thread {
+        private final float[] mWindow = new float[WINDOW];
+        private final float[] mHann = new float[WINDOW];
+        private final float[] mRaw = new float[BAND_COUNT];
+        private final float[] mLevels = new float[BAND_COUNT];
+        private FloatDCT_1D mDct;
+
+        AnalyzerThread() {
+            super("SpectrumAnalyzer");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            for (int i = 0; i < WINDOW; i++) {
+                mHann[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (WINDOW - 1)));
+            }
+            mDct = new FloatDCT_1D(WINDOW);
+
+            SpectrumTap.request();
+            boolean showing = false;
+            long lastData = SystemClock.uptimeMillis();
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                final int sampleRate = SpectrumTap.read(mWindow);
+                final long now = SystemClock.uptimeMillis();
+                if (sampleRate > 0) {
+                    SpectrumTap.request();
+                    analyze(sampleRate, showing);
+                    showing = true;
+                    lastData = now;
+                    publish(mLevels);
+                } else if (showing && now - lastData > STALE_MS) {
+                    showing = false;
+                    publish(null);
+                }
+            }
+        }
+
+        private void analyze(int sampleRate, boolean smooth) {
+            final float[] x = mWindow;
+            for (int i = 0; i < WINDOW; i++) {
+                x[i] *= mHann[i];
+            }
+            mDct.inverse(x, false);
+
+            // Average the power of the bins in each band.
+            final SpectrumData.BinEdges edges = SpectrumData.getBinEdges(WINDOW, sampleRate);
+            float max = FLOOR;
+            for (int b = 0; b < BAND_COUNT; b++) {
+                float level = FLOOR;
+                final int start = edges.get(b);
+                final int end = edges.get(b + 1);
+                final int n = end - start;
+                if (n > 0) {
+                    double power = 0;
+                    for (int k = start; k < end; k++) {
+                        power += x[k] * x[k];
+                    }
+                    // log1000(sqrt(power / n))
+                    final double amp = Math.sqrt(power / n);
+                    if (amp > 0) {
+                        level = Math.max(FLOOR, (float) (Math.log10(amp) / 3));
+                    }
+                }
+                mRaw[b] = level;
+                max = Math.max(max, level);
+            }
+            for (int b = 0; b < BAND_COUNT; b++) {
+                final float level = Math.max(FLOOR, mRaw[b] - max);
+                mLevels[b] = smooth ? SMOOTHING * mLevels[b] + (1 - SMOOTHING) * level : level;
+            }
+        }
+    }
+}
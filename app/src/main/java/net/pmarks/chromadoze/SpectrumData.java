@@ -3,6 +3,8 @@ package net.pmarks.chromadoze;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.Arrays;
+
 // SpectrumData is a Phonon translated into "machine readable" form.
 //
 // In other words, the values here are suitable for generating noise,
@@ -29,6 +31,34 @@ public class SpectrumData implements Parcelable {
     // The frequency of the edges between each bar.
     private static final int[] EDGE_FREQS = calculateEdgeFreqs();
 
+    // Recent results of getBinEdges(), newest first.  The array is replaced,
+    // never modified, so readers don't need a lock.
+    private static final int BIN_EDGE_CACHE_SIZE = 8;
+    private static volatile BinEdges[] sBinEdgeCache = new BinEdges[0];
+
+    // The DCT bin where each band starts, for one (size, sampleRate).
+    // Read-only, so one instance can be shared between threads.
+    static final class BinEdges {
+        private final int mSize;
+        private final int mSampleRate;
+        private final int[] mEdges;
+
+        private BinEdges(int size, int sampleRate) {
+            mSize = size;
+            mSampleRate = sampleRate;
+            final long maxFreq = sampleRate / 2;
+            mEdges = new int[BAND_COUNT + 1];
+            for (int i = 0; i <= BAND_COUNT; i++) {
+                mEdges[i] = (int) Math.min(size, EDGE_FREQS[i] * (long) size / maxFreq);
+            }
+        }
+
+        // Edge i is the start of band i, and the end of band i - 1.
+        int get(int i) {
+            return mEdges[i];
+        }
+    }
+
     private final float[] mData;
 
     private static int[] calculateEdgeFreqs() {
@@ -69,21 +99,68 @@ public class SpectrumData implements Parcelable {
         dest.writeFloatArray(mData);
     }
 
+    // Expand the bars into one amplitude per DCT bin.  The result depends
+    // only on this spectrum and (size, sampleRate), so callers should reuse
+    // it for every chunk of the same size.  When smoothEdges is true, each
+    // band edge becomes a linear ramp instead of a hard step.
+    public float[] makeEnvelope(int size, int sampleRate, boolean smoothEdges) {
+        float[] out = new float[size];
+        fill(out, sampleRate);
+        if (smoothEdges) {
+            smoothEdges(out, getBinEdges(size, sampleRate));
+        }
+        return out;
+    }
+
     public void fill(float[] out, int sampleRate) {
-        int maxFreq = sampleRate / 2;
-        subFill(out, 0f, 0, EDGE_FREQS[0], maxFreq);
+        final BinEdges edges = getBinEdges(out.length, sampleRate);
+        Arrays.fill(out, 0, edges.get(0), 0f);
         for (int i = 0; i < BAND_COUNT; i++) {
-            subFill(out, mData[i], EDGE_FREQS[i], EDGE_FREQS[i + 1], maxFreq);
+            Arrays.fill(out, edges.get(i), edges.get(i + 1), mData[i]);
         }
-        subFill(out, 0f, EDGE_FREQS[BAND_COUNT], maxFreq, maxFreq);
+        Arrays.fill(out, edges.get(BAND_COUNT), out.length, 0f);
     }
 
-    private void subFill(float[] out, float setValue, int startFreq, int limitFreq, int maxFreq) {
-        // This min() applies if the sample rate is below 40kHz.
-        int limitIndex = Math.min(out.length, limitFreq * out.length / maxFreq);
-        for (int i = startFreq * out.length / maxFreq; i < limitIndex; i++) {
-            out[i] = setValue;
+    // Replace each step at a band edge with a ramp, reaching halfway into
+    // the narrower neighbor.  The region outside the bands counts as a
+    // neighbor with value 0.
+    private void smoothEdges(float[] out, BinEdges edges) {
+        for (int k = 0; k <= BAND_COUNT; k++) {
+            final int edge = edges.get(k);
+            final int lowStart = k > 0 ? edges.get(k - 1) : 0;
+            final int highLimit = k < BAND_COUNT ? edges.get(k + 1) : out.length;
+            final int half = Math.min(edge - lowStart, highLimit - edge) / 2;
+            if (half <= 0) {
+                continue;
+            }
+            final float lowValue = k > 0 ? mData[k - 1] : 0f;
+            final float highValue = k < BAND_COUNT ? mData[k] : 0f;
+            final int start = edge - half;
+            final float step = (highValue - lowValue) / (2 * half);
+            for (int i = 0; i < 2 * half; i++) {
+                out[start + i] = lowValue + step * (i + 0.5f);
+            }
+        }
+    }
+
+    // Map each entry of EDGE_FREQS to a DCT bin index, for a given chunk
+    // size and sample rate.  The last band is clipped to the Nyquist
+    // frequency if the sample rate is below 40kHz.
+    static BinEdges getBinEdges(int size, int sampleRate) {
+        final BinEdges[] cache = sBinEdgeCache;
+        for (BinEdges edges : cache) {
+            if (edges.mSize == size && edges.mSampleRate == sampleRate) {
+                return edges;
+            }
         }
+        // Two threads may both miss and compute the same edges, and one
+        // entry is lost.  Either way, every caller gets correct edges.
+        final BinEdges edges = new BinEdges(size, sampleRate);
+        final BinEdges[] next = new BinEdges[Math.min(cache.length + 1, BIN_EDGE_CACHE_SIZE)];
+        next[0] = edges;
+        System.arraycopy(cache, 0, next, 1, next.length - 1);
+        sBinEdgeCache = next;
+        return edges;
     }
 
     public boolean sameSpectrum(SpectrumData other) {
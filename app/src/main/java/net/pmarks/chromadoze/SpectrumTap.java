@@ -0,0 +1,67 @@
+package net.pmarks.chromadoze;
+
+// SpectrumTap lets the UI look at the audio that's actually playing.
+//
+// The reader asks for a window of frames, and the playback thread copies
+// the next WINDOW frames it plays into a shared buffer, mixed to mono.
+// Then it stops copying until the reader asks again, so only a small
+// fraction of the stream is ever copied.
+//
+// Each side owns one volatile counter, so the playback thread never
+// blocks or allocates.  When nobody is asking, write() costs two
+// volatile reads.
+class SpectrumTap {
+    // Frames per window.  Must be a size FloatDCT_1D supports.
+    public static final int WINDOW = 4096;
+
+    private static final float[] sWindow = new float[WINDOW];
+
+    // Only the reader writes this.
+    private static volatile int sRequested = 0;
+    // Only the playback thread writes these.  sFilled == sRequested means
+    // sWindow holds a complete window, and the playback thread won't touch
+    // it until the next request.
+    private static volatile int sFilled = 0;
+    private static volatile int sSampleRate = 0;
+
+    // Only touched by the playback thread.
+    private static int sFillingFor = 0;
+    private static int sFillPos = 0;
+
+    // Called by the playback thread with each stereo buffer it plays.
+    static void write(short[] buf, int len, int sampleRate) {
+        final int req = sRequested;
+        if (req == sFilled) {
+            return;
+        }
+        if (req != sFillingFor) {
+            // Don't finish a window that nobody wants anymore.
+            sFillingFor = req;
+            sFillPos = 0;
+        }
+        int pos = sFillPos;
+        for (int i = 0; i + 1 < len && pos < WINDOW; i += AudioParams.SHORTS_PER_SAMPLE) {
+            sWindow[pos++] = (buf[i] + buf[i + 1]) * (0.5f / 32768f);
+        }
+        sFillPos = pos;
+        if (pos == WINDOW) {
+            sSampleRate = sampleRate;
+            sFilled = req;
+        }
+    }
+
+    // Ask the playback thread for a new window.
+    static synchronized void request() {
+        sRequested = sRequested + 1;
+    }
+
+    // If the requested window is complete, copies it into out and returns
+    // its sample rate.  Otherwise, returns 0.
+    static synchronized int read(float[] out) {
+        if (sFilled != sRequested) {
+            return 0;
+        }
+        System.arraycopy(sWindow, 0, out, 0, WINDOW);
+        return sSampleRate;
+    }
+}
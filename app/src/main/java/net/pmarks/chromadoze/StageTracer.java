@@ -0,0 +1,147 @@
+package net.pmarks.chromadoze;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+// StageTracer marks the expensive stages of the generator and playback
+// threads, so a stutter can be blamed on a specific piece of work.
+//
+// Usage:
+//   final long t = StageTracer.begin(StageTracer.IDCT);
+//   ...
+//   StageTracer.end(StageTracer.IDCT, t);
+//
+// When tracing is off, begin() costs one volatile read and returns 0,
+// and end() returns immediately.  Nothing is allocated in either case.
+class StageTracer {
+    // Stage names.  These show up verbatim in systrace/perfetto.
+    public static final String SPECTRUM_FILL = "cd:spectrumFill";
+    public static final String NOISE = "cd:noise";
+    public static final String IDCT = "cd:idct";
+    public static final String HANDLE_CHUNK = "cd:handleChunk";
+    public static final String BUILD_PCM = "cd:buildPcm";
+    public static final String CHANGE_VOLUME = "cd:changeGlobalVolume";
+    public static final String SHUFFLER_LOCK = "cd:shufflerLock";
+    public static final String FILL_BUFFER = "cd:fillBuffer";
+    public static final String AMP_WAVE = "cd:ampWave";
+    public static final String TRACK_WRITE = "cd:trackWrite";
+
+    // Receives the begin/end events, e.g. to forward them to a profiler.
+    // Calls are nested per thread, like android.os.Trace.
+    public interface Recorder {
+        void beginSection(String name);
+
+        void endSection();
+    }
+
+    // Forwards sections to the platform tracer, where it exists.
+    private static class SystemTraceRecorder implements Recorder {
+        @Override
+        public void beginSection(String name) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                Trace.beginSection(name);
+            }
+        }
+
+        @Override
+        public void endSection() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                Trace.endSection();
+            }
+        }
+    }
+
+    private static volatile boolean sEnabled = false;
+    private static volatile Recorder sRecorder = new SystemTraceRecorder();
+
+    // Ring of the most recent stage timings.  Guarded by RING_LOCK.
+    private static final int RING_SIZE = 256;
+    private static final Object RING_LOCK = new Object();
+    private static final String[] sRingNames = new String[RING_SIZE];
+    private static final String[] sRingThreads = new String[RING_SIZE];
+    private static final long[] sRingEndMs = new long[RING_SIZE];
+    private static final long[] sRingDurationNs = new long[RING_SIZE];
+    private static int sRingNext = 0;
+    private static int sRingCount = 0;
+
+    private StageTracer() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    // Replace the platform tracer, e.g. when running outside of Android.
+    // Passing null restores the default.
+    public static void setRecorder(Recorder recorder) {
+        sRecorder = recorder != null ? recorder : new SystemTraceRecorder();
+    }
+
+    // Returns a token for end(), or 0 if tracing is off.
+    public static long begin(String name) {
+        if (!sEnabled) {
+            return 0;
+        }
+        sRecorder.beginSection(name);
+        return Math.max(1, System.nanoTime());
+    }
+
+    public static void end(String name, long token) {
+        if (token == 0) {
+            return;
+        }
+        final long durationNs = System.nanoTime() - token;
+        sRecorder.endSection();
+        synchronized (RING_LOCK) {
+            sRingNames[sRingNext] = name;
+            sRingThreads[sRingNext] = Thread.currentThread().getName();
+            sRingEndMs[sRingNext] = SystemClock.elapsedRealtime();
+            sRingDurationNs[sRingNext] = durationNs;
+            sRingNext = (sRingNext + 1) % RING_SIZE;
+            if (sRingCount < RING_SIZE) {
+                sRingCount++;
+            }
+        }
+    }
+
+    public static void clear() {
+        synchronized (RING_LOCK) {
+            sRingNext = 0;
+            sRingCount = 0;
+        }
+    }
+
+    // Write the recent stage timings, oldest first.  The audio thread takes
+    // RING_LOCK in end(), so only copy under the lock, and format and
+    // write (possibly to a slow dumpsys pipe) after releasing it.
+    public static void dump(PrintWriter pw) {
+        final String[] names = new String[RING_SIZE];
+        final String[] threads = new String[RING_SIZE];
+        final long[] endMs = new long[RING_SIZE];
+        final long[] durationNs = new long[RING_SIZE];
+        final int count;
+        synchronized (RING_LOCK) {
+            count = sRingCount;
+            for (int i = 0; i < count; i++) {
+                final int pos = (sRingNext - count + i + RING_SIZE) % RING_SIZE;
+                names[i] = sRingNames[pos];
+                threads[i] = sRingThreads[pos];
+                endMs[i] = sRingEndMs[pos];
+                durationNs[i] = sRingDurationNs[pos];
+            }
+        }
+        pw.println("Recent stages (" + count + "):");
+        for (int i = 0; i < count; i++) {
+            pw.println(String.format(Locale.US, "  %10d %-24s %-22s %8.3f ms",
+                    endMs[i], threads[i], names[i], durationNs[i] / 1e6));
+        }
+    }
+}
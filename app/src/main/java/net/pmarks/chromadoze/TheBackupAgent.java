@@ -1,6 +1,7 @@
 package net.pmarks.chromadoze;
 
 import android.app.backup.BackupAgentHelper;
+import android.app.backup.FileBackupHelper;
 import android.app.backup.SharedPreferencesBackupHelper;
 
 // This implements a BackupAgent, not because the data is particularly
@@ -9,10 +10,12 @@ import android.app.backup.SharedPreferencesBackupHelper;
 // alternative (or disable backups entirely.)
 public class TheBackupAgent extends BackupAgentHelper {
     private static final String PREF_BACKUP_KEY = "pref";
+    private static final String PRESETS_BACKUP_KEY = "presets";
 
     @Override
     public void onCreate() {
         addHelper(PREF_BACKUP_KEY, new SharedPreferencesBackupHelper(
                 this, ChromaDoze.PREF_NAME));
+        addHelper(PRESETS_BACKUP_KEY, new FileBackupHelper(this, PresetStore.FILE_NAME));
     }
 }
@@ -0,0 +1,224 @@
+package net.pmarks.chromadoze;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff.Mode;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.LruCache;
+import android.util.TypedValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// ThumbnailCache renders the small equalizer pictures in the Memory list.
+//
+// Thumbnails are drawn on a background thread, and kept in an LruCache
+// keyed by the Phonon's contents and the thumbnail's size, so scrolling
+// back to a row (or showing the same preset twice) doesn't redraw it.
+// The color overlay is decoded once.
+//
+// All public methods must be called from the main thread.
+class ThumbnailCache {
+    private static final int BAND_COUNT = SpectrumData.BAND_COUNT;
+
+    // Upper bound on cached pixels, as a fraction of the heap.
+    private static final int HEAP_FRACTION = 16;
+    private static final int MAX_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private static ThumbnailCache sInstance;
+
+    public static ThumbnailCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThumbnailCache(context.getApplicationContext().getResources());
+        }
+        return sInstance;
+    }
+
+    public interface Callback {
+        // Runs on the main thread.
+        void onThumbnailReady(Key key, Bitmap bitmap);
+    }
+
+    // What a thumbnail looks like.  A null Phonon draws a flat line, for
+    // placeholder rows.
+    public static class Key {
+        private final Phonon mPhonon;
+        private final int mWidth;
+        private final int mHeight;
+        private final boolean mEnabled;
+        private final int mHash;
+
+        // The Phonon must not be dirty.  Saved Phonons never change, but
+        // the scratch Phonon does, so keep a copy.
+        Key(Phonon phonon, int width, int height, boolean enabled) {
+            mPhonon = phonon != null ? phonon.makeMutableCopy() : null;
+            mWidth = width;
+            mHeight = height;
+            mEnabled = enabled;
+            int h = phonon != null ? phonon.fastHashCode() : 0;
+            h = 31 * h + width;
+            h = 31 * h + height;
+            h = 31 * h + (enabled ? 1 : 0);
+            mHash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key k = (Key) o;
+            if (mHash != k.mHash || mWidth != k.mWidth || mHeight != k.mHeight ||
+                    mEnabled != k.mEnabled) {
+                return false;
+            }
+            if (mPhonon == null || k.mPhonon == null) {
+                return mPhonon == k.mPhonon;
+            }
+            return mPhonon.fastEquals(k.mPhonon);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+
+    // A render in progress, and the views waiting for it.
+    private class Request implements Runnable {
+        final Key mKey;
+        final ArrayList<Callback> mCallbacks = new ArrayList<>();
+        // Set when nobody is waiting anymore, e.g. after a fast scroll.
+        volatile boolean mCancelled = false;
+
+        Request(Key key) {
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            final Bitmap bitmap = render(mKey);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    finish(Request.this, bitmap);
+                }
+            });
+        }
+    }
+
+    private final Resources mResources;
+    private final float mStrokeWidth;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final LruCache<Key, Bitmap> mCache;
+    private final HashMap<Key, Request> mPending = new HashMap<>();
+
+    // Only touched by the render thread.
+    private Bitmap mColorBitmap;
+
+    private ThumbnailCache(Resources resources) {
+        mResources = resources;
+        mStrokeWidth = TypedValue.applyDimension(
+                TypedValue.COMPLEX_UNIT_DIP, 3, resources.getDisplayMetrics());
+        final int maxBytes = (int) Math.min(MAX_CACHE_BYTES,
+                Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+        mCache = new LruCache<Key, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    // Returns the thumbnail if it's cached.  Otherwise, starts drawing it,
+    // calls the callback when it's done, and returns null.
+    public Bitmap request(Key key, Callback callback) {
+        final Bitmap bitmap = mCache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        Request r = mPending.get(key);
+        if (r == null) {
+            r = new Request(key);
+            mPending.put(key, r);
+            mExecutor.execute(r);
+        }
+        r.mCallbacks.add(callback);
+        return null;
+    }
+
+    // The callback no longer wants this thumbnail.
+    public void cancel(Key key, Callback callback) {
+        final Request r = mPending.get(key);
+        if (r != null && r.mCallbacks.remove(callback) && r.mCallbacks.isEmpty()) {
+            r.mCancelled = true;
+            mPending.remove(key);
+        }
+    }
+
+    private void finish(Request r, Bitmap bitmap) {
+        if (mPending.get(r.mKey) == r) {
+            mPending.remove(r.mKey);
+        }
+        mCache.put(r.mKey, bitmap);
+        for (Callback callback : r.mCallbacks) {
+            callback.onThumbnailReady(r.mKey, bitmap);
+        }
+    }
+
+    // Runs on the render thread.
+    private Bitmap render(Key key) {
+        Bitmap bmp = Bitmap.createBitmap(key.mWidth, key.mHeight, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bmp);
+
+        // Draw a white line
+        Paint whitePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        whitePaint.setColor(Color.WHITE);
+        whitePaint.setAlpha(key.mEnabled ? 250 : 94);
+        whitePaint.setStyle(Paint.Style.STROKE);
+        whitePaint.setStrokeWidth(mStrokeWidth);
+
+        final float barWidth = (float) key.mWidth / BAND_COUNT;
+        Path path = new Path();
+        for (int i = 0; i < BAND_COUNT; i++) {
+            float bar = key.mPhonon != null ? key.mPhonon.getBar(i) : .5f;
+            float x = barWidth * (i + 0.5f);
+            float y = (1f - bar) * key.mHeight;
+            if (i == 0) {
+                path.moveTo(x, y);
+            } else {
+                path.lineTo(x, y);
+            }
+        }
+        canvas.drawPath(path, whitePaint);
+
+        // Overlay the spectrum bitmap to add color.
+        if (mColorBitmap == null) {
+            mColorBitmap = BitmapFactory.decodeResource(mResources, R.drawable.spectrum);
+        }
+        Rect src = new Rect(0, 0, mColorBitmap.getWidth(), mColorBitmap.getHeight());
+        Rect dst = new Rect(0, 0, bmp.getWidth(), bmp.getHeight());
+        Paint alphaPaint = new Paint();
+        alphaPaint.setXfermode(new PorterDuffXfermode(Mode.SRC_IN));
+        canvas.drawBitmap(mColorBitmap, src, dst, alphaPaint);
+
+        return bmp;
+    }
+}
@@ -3,30 +3,65 @@ package net.pmarks.chromadoze;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.util.Log;
+import android.widget.Toast;
 
 import androidx.core.content.ContextCompat;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 
 public class UIState {
 
+    private static final String TAG = "UIState";
+
     private final Context mContext;
 
     private boolean mLocked = false;
     private boolean mLockBusy = false;
     private final ArrayList<LockListener> mLockListeners = new ArrayList<>();
+    private final ArrayList<LibraryListener> mLibraryListeners = new ArrayList<>();
 
     public final TrackedPosition mActivePos = new TrackedPosition();
     public PhononMutable mScratchPhonon;
-    public ArrayList<Phonon> mSavedPhonons;
+    public final ArrayList<Phonon> mSavedPhonons = new ArrayList<>();
+
+    // These mirror mSavedPhonons, so use the methods below to change the list.
+    private final PresetStore mStore;
+    private final PhononIndex mIndex = new PhononIndex();
+
+    // Position of each saved Phonon, so lookups through mIndex don't have
+    // to scan the list.  Edits that shift rows mark it stale, and the next
+    // lookup rebuilds it once.
+    private final IdentityHashMap<Phonon, Integer> mSavedPositions =
+            new IdentityHashMap<>();
+    private boolean mPositionsStale = true;
+
+    // mSavedPhonons stays empty until the library loads in the background.
+    // Meanwhile, mActiveCopy stands in for the active saved Phonon, and
+    // mSavedCountHint says how many rows to reserve.
+    private boolean mLibraryLoaded = false;
+    private Phonon mActiveCopy = null;
+    private int mSavedCountHint = 0;
+    // The library came from the old JSON keys, and PresetStore hasn't
+    // written it yet.
+    private boolean mMigrating = false;
 
     public UIState(Context context) {
         mContext = context;
+        mStore = PresetStore.forContext(context);
     }
 
     private boolean mDirty = false;
+    // MotionEvent time of the touch that changed the spectrum; see LatencyProbe.
+    private long mTouchTimeMs = 0;
     private boolean mAutoPlay;
     private boolean mIgnoreAudioFocus;
+    private boolean mRefreshChunks;
+    private boolean mRefreshBatteryCheck;
+    private boolean mSmoothBandEdges;
     private boolean mVolumeLimitEnabled;
     private int mVolumeLimit;
     public static final int MAX_VOLUME = 100;
@@ -35,21 +70,139 @@ public class UIState {
         pref.putBoolean("locked", mLocked);
         pref.putBoolean("autoPlay", mAutoPlay);
         pref.putBoolean("ignoreAudioFocus", mIgnoreAudioFocus);
+        pref.putBoolean("refreshChunks", mRefreshChunks);
+        pref.putBoolean("refreshBatteryCheck", mRefreshBatteryCheck);
+        pref.putBoolean("smoothBandEdges", mSmoothBandEdges);
         pref.putInt("volumeLimit", getVolumeLimit());
-        pref.putString("phononS", mScratchPhonon.toJSON());
-        for (int i = 0; i < mSavedPhonons.size(); i++) {
-            pref.putString("phonon" + i, mSavedPhonons.get(i).toJSON());
-        }
         pref.putInt("activePhonon", mActivePos.getPos());
+        if (mActivePos.getPos() != -1) {
+            pref.putString("activePhononCopy", getPhonon().toJSON());
+        }
+        if (mLibraryLoaded) {
+            pref.putInt("savedCount", mSavedPhonons.size());
+            if (!mMigrating) {
+                // Only the changes get written, in the background.
+                mStore.save(mScratchPhonon, mSavedPhonons);
+            } else if (mStore.saveNow(mScratchPhonon, mSavedPhonons)) {
+                // The file is on disk, so the JSON keys can go.
+                mMigrating = false;
+            } else {
+                // The caller cleared the prefs, and the JSON keys are still
+                // the only copy.  Try again next time.
+                savePhononsToJSON(pref);
+            }
+        } else {
+            // The store can't write the list until it knows the file's
+            // layout, but the scratch slot is always in the same place.
+            pref.putInt("savedCount", mSavedCountHint);
+            mStore.saveScratch(mScratchPhonon);
+        }
     }
 
     public void loadState(SharedPreferences pref) {
         mLocked = pref.getBoolean("locked", false);
         setAutoPlay(pref.getBoolean("autoPlay", false), false);
         setIgnoreAudioFocus(pref.getBoolean("ignoreAudioFocus", false));
+        setRefreshChunks(pref.getBoolean("refreshChunks", false));
+        setRefreshBatteryCheck(pref.getBoolean("refreshBatteryCheck", true));
+        setSmoothBandEdges(pref.getBoolean("smoothBandEdges", false));
         setVolumeLimit(pref.getInt("volumeLimit", MAX_VOLUME));
         setVolumeLimitEnabled(mVolumeLimit != MAX_VOLUME);
 
+        // Load the scratch Phonon and a copy of the active one, which is
+        // enough to start playing.  The rest of the library loads in the
+        // background.  Without a PresetStore, fall back to the JSON keys
+        // that older versions used; the next saveState() migrates them.
+        final int active = pref.getInt("activePhonon", -1);
+        mSavedPhonons.clear();
+        mPositionsStale = true;
+        mScratchPhonon = mStore.loadScratch();
+        if (mScratchPhonon != null) {
+            mMigrating = false;
+            mLibraryLoaded = false;
+            mActiveCopy = null;
+            if (active >= 0) {
+                final PhononMutable copy = new PhononMutable();
+                if (copy.loadFromJSON(pref.getString("activePhononCopy", null))) {
+                    mActiveCopy = copy;
+                }
+            }
+            mActivePos.setPos(mActiveCopy != null ? active : -1);
+            mSavedCountHint = pref.getInt("savedCount", 0);
+            mStore.loadAsync(new PresetStore.LoadCallback() {
+                @Override
+                public void onLoaded(ArrayList<PhononMutable> phonons) {
+                    onLibraryLoaded(phonons);
+                }
+
+                @Override
+                public void onLoadFailed() {
+                    // Stay unloaded, so nothing replaces the file with an
+                    // empty library.  Only the scratch slot gets saved.
+                    Log.w(TAG, "Giving up on loading the saved presets");
+                    Toast.makeText(mContext, R.string.library_load_failed,
+                            Toast.LENGTH_LONG).show();
+                }
+            });
+        } else {
+            loadPhononsFromJSON(pref);
+            mMigrating = true;
+            mIndex.rebuild(mSavedPhonons);
+            mPositionsStale = true;
+            mActivePos.setPos(-1 <= active && active < mSavedPhonons.size() ?
+                    active : -1);
+            mLibraryLoaded = true;
+        }
+    }
+
+    private void onLibraryLoaded(ArrayList<PhononMutable> phonons) {
+        if (phonons != null) {
+            mSavedPhonons.addAll(phonons.subList(1, phonons.size()));
+        }
+        mIndex.rebuild(mSavedPhonons);
+        mPositionsStale = true;
+        // Swap the stand-in for the real thing.  If they don't match, keep
+        // the stand-in as the scratch Phonon, so the sound doesn't change.
+        final int pos = mActivePos.getPos();
+        if (pos != -1 && (pos >= mSavedPhonons.size() ||
+                !mSavedPhonons.get(pos).fastEquals(mActiveCopy))) {
+            mScratchPhonon = mActiveCopy.makeMutableCopy();
+            mActivePos.setPos(-1);
+        }
+        mActiveCopy = null;
+        mLibraryLoaded = true;
+        for (LibraryListener l : mLibraryListeners) {
+            l.onLibraryLoaded();
+        }
+    }
+
+    public boolean isLibraryLoaded() {
+        return mLibraryLoaded;
+    }
+
+    // Number of saved Phonons expected, while the library is loading.
+    public int getSavedCountHint() {
+        return mLibraryLoaded ? mSavedPhonons.size() : mSavedCountHint;
+    }
+
+    public void addLibraryListener(LibraryListener l) {
+        mLibraryListeners.add(l);
+    }
+
+    public void removeLibraryListener(LibraryListener l) {
+        if (!mLibraryListeners.remove(l)) {
+            throw new IllegalStateException();
+        }
+    }
+
+    private void savePhononsToJSON(SharedPreferences.Editor pref) {
+        pref.putString("phononS", mScratchPhonon.toJSON());
+        for (int i = 0; i < mSavedPhonons.size(); i++) {
+            pref.putString("phonon" + i, mSavedPhonons.get(i).toJSON());
+        }
+    }
+
+    private void loadPhononsFromJSON(SharedPreferences pref) {
         // Load the scratch phonon.
         mScratchPhonon = new PhononMutable();
         if (mScratchPhonon.loadFromJSON(pref.getString("phononS", null))) {
@@ -61,7 +214,6 @@ public class UIState {
         }
 
         // Load the saved phonons.
-        mSavedPhonons = new ArrayList<>();
         for (int i = 0; i < TrackedPosition.NOWHERE; i++) {
             PhononMutable phm = new PhononMutable();
             if (!phm.loadFromJSON(pref.getString("phonon" + i, null))) {
@@ -69,11 +221,92 @@ public class UIState {
             }
             mSavedPhonons.add(phm);
         }
+    }
 
-        // Load the currently-selected phonon.
-        final int active = pref.getInt("activePhonon", -1);
-        mActivePos.setPos(-1 <= active && active < mSavedPhonons.size() ?
-                active : -1);
+    public void insertSavedPhonon(int index, Phonon ph) {
+        mSavedPhonons.add(index, ph);
+        mStore.onInsert(index);
+        mIndex.add(ph);
+        if (index == mSavedPhonons.size() - 1) {
+            mSavedPositions.put(ph, index);
+        } else {
+            mPositionsStale = true;
+        }
+    }
+
+    // Append phonons to the library, skipping any that are already saved.
+    // Returns how many were added.
+    public int appendSavedPhonons(List<? extends Phonon> phonons) {
+        int added = 0;
+        for (Phonon ph : phonons) {
+            if (mIndex.findEqual(ph) == null) {
+                insertSavedPhonon(mSavedPhonons.size(), ph);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    public Phonon removeSavedPhonon(int index) {
+        final Phonon ph = mSavedPhonons.remove(index);
+        mStore.onRemove(index);
+        mIndex.remove(ph);
+        mSavedPositions.remove(ph);
+        if (index != mSavedPhonons.size()) {
+            mPositionsStale = true;
+        }
+        return ph;
+    }
+
+    public void moveSavedPhonon(int from, int to) {
+        moveItem(mSavedPhonons, from, to);
+        mStore.onMove(from, to);
+        if (!mPositionsStale) {
+            for (int i = Math.min(from, to); i <= Math.max(from, to); i++) {
+                mSavedPositions.put(mSavedPhonons.get(i), i);
+            }
+        }
+    }
+
+    // Move list[from] to list[to], shifting only the rows in between.
+    // remove() then add() would shift everything past both indices.
+    static <T> void moveItem(List<T> list, int from, int to) {
+        if (from < to) {
+            Collections.rotate(list.subList(from, to + 1), -1);
+        } else if (from > to) {
+            Collections.rotate(list.subList(to, from + 1), 1);
+        }
+    }
+
+    // Returns the index of a saved copy of ph, or -1.
+    public int findSavedCopy(Phonon ph) {
+        return indexOfSaved(mIndex.findEqual(ph));
+    }
+
+    // Returns the index of the saved Phonon whose bars are closest to ph,
+    // not counting copies of ph, or -1.
+    public int findSimilarSaved(Phonon ph) {
+        return indexOfSaved(mIndex.findNearest(ph));
+    }
+
+    private int indexOfSaved(Phonon ph) {
+        if (ph == null) {
+            return -1;
+        }
+        if (mPositionsStale) {
+            // Saved Phonons are distinct objects, so key them by reference.
+            mSavedPositions.clear();
+            for (int i = 0; i < mSavedPhonons.size(); i++) {
+                mSavedPositions.put(mSavedPhonons.get(i), i);
+            }
+            mPositionsStale = false;
+        }
+        final Integer pos = mSavedPositions.get(ph);
+        if (pos == null) {
+            Log.w(TAG, "PhononIndex out of sync");
+            return -1;
+        }
+        return pos;
     }
 
     public void addLockListener(LockListener l) {
@@ -101,11 +334,22 @@ public class UIState {
         getPhonon().writeIntent(intent);
         intent.putExtra("volumeLimit", (float) getVolumeLimit() / MAX_VOLUME);
         intent.putExtra("ignoreAudioFocus", mIgnoreAudioFocus);
+        intent.putExtra("refreshChunks", mRefreshChunks);
+        intent.putExtra("refreshBatteryCheck", mRefreshBatteryCheck);
+        intent.putExtra("smoothBandEdges", mSmoothBandEdges);
         intent.putExtra("refreshNotification", refreshNotification);
+        if (mTouchTimeMs > 0) {
+            intent.putExtra("touchUptimeMs", mTouchTimeMs);
+            mTouchTimeMs = 0;
+        }
         ContextCompat.startForegroundService(mContext, intent);
         mDirty = false;
     }
 
+    public void setTouchTime(long uptimeMs) {
+        mTouchTimeMs = uptimeMs;
+    }
+
     public boolean sendIfDirty() {
         if (mDirty || (mActivePos.getPos() == -1 && mScratchPhonon.isDirty())) {
             sendToService();
@@ -142,12 +386,15 @@ public class UIState {
         if (mActivePos.getPos() == -1) {
             return mScratchPhonon;
         }
+        if (!mLibraryLoaded) {
+            return mActiveCopy;
+        }
         return mSavedPhonons.get(mActivePos.getPos());
     }
 
     public PhononMutable getPhononMutable() {
         if (mActivePos.getPos() != -1) {
-            mScratchPhonon = mSavedPhonons.get(mActivePos.getPos()).makeMutableCopy();
+            mScratchPhonon = getPhonon().makeMutableCopy();
             mActivePos.setPos(-1);
         }
         return mScratchPhonon;
@@ -162,6 +409,12 @@ public class UIState {
         sendToService();
     }
 
+    // This interface is for receiving a callback when the saved Phonons
+    // have finished loading.
+    public interface LibraryListener {
+        void onLibraryLoaded();
+    }
+
     // This interface is for receiving a callback when the state
     // of the Input Lock has changed.
     public interface LockListener {
@@ -198,6 +451,42 @@ public class UIState {
         return mIgnoreAudioFocus;
     }
 
+    public void setRefreshChunks(boolean enabled) {
+        if (mRefreshChunks == enabled) {
+            return;
+        }
+        mRefreshChunks = enabled;
+        mDirty = true;
+    }
+
+    public boolean getRefreshChunks() {
+        return mRefreshChunks;
+    }
+
+    public void setRefreshBatteryCheck(boolean enabled) {
+        if (mRefreshBatteryCheck == enabled) {
+            return;
+        }
+        mRefreshBatteryCheck = enabled;
+        mDirty = true;
+    }
+
+    public boolean getRefreshBatteryCheck() {
+        return mRefreshBatteryCheck;
+    }
+
+    public void setSmoothBandEdges(boolean enabled) {
+        if (mSmoothBandEdges == enabled) {
+            return;
+        }
+        mSmoothBandEdges = enabled;
+        mDirty = true;
+    }
+
+    public boolean getSmoothBandEdges() {
+        return mSmoothBandEdges;
+    }
+
     public void setVolumeLimitEnabled(boolean enabled) {
         if (mVolumeLimitEnabled == enabled) {
             return;
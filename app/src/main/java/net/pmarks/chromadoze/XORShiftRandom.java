@@ -20,4 +20,9 @@ class XORShiftRandom {
     public int nextInt(int limit) {
         return ((int) nextLong() & 0x7FFFFFFF) % limit;
     }
+
+    // Get a random number from [0, 1).
+    public float nextFloat() {
+        return (nextLong() >>> 40) * (1f / (1 << 24));
+    }
 }
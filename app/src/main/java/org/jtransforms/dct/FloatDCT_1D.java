@@ -27,6 +27,7 @@
 package org.jtransforms.dct;
 
 import org.jtransforms.utils.CommonUtils;
+import org.jtransforms.utils.MixedRadixFFT;
 import static java.lang.Math.ceil;
 import static java.lang.Math.log;
 import static java.lang.Math.sqrt;
@@ -58,6 +59,22 @@ public class FloatDCT_1D
 
     private boolean isPowerOfTwo = false;
 
+    // For other sizes: a complex FFT of n/2 elements, the pre-twiddle
+    // exp(i*pi*k/(2n)) and exp(2*pi*i*k/n) for k in [0, n/2), and buffers.
+    private MixedRadixFFT fft;
+
+    private float[] preTw;
+
+    private float[] postTw;
+
+    private float[] bufA;
+
+    private float[] bufB;
+
+    // Threads for the power-of-2 FFT. Owned by this instance, so transforms
+    // on other threads don't pick it up.
+    private int nthreads = 1;
+
     /**
      * Creates new instance of FloatDCT_1D.
      *  
@@ -89,12 +106,109 @@ public class FloatDCT_1D
                     nc = this.n;
                     CommonUtils.makect(nc, w, nw, ip);
                 }
+            } else if (isSupportedSize(n)) {
+                int half = this.n / 2;
+                this.fft = new MixedRadixFFT(half);
+                this.preTw = new float[this.n];
+                this.postTw = new float[this.n];
+                for (int k = 0; k < half; k++) {
+                    double pre = Math.PI * k / (2.0 * this.n);
+                    preTw[2 * k] = (float) Math.cos(pre);
+                    preTw[2 * k + 1] = (float) Math.sin(pre);
+                    double post = 2 * Math.PI * k / this.n;
+                    postTw[2 * k] = (float) Math.cos(post);
+                    postTw[2 * k + 1] = (float) Math.sin(post);
+                }
+                this.bufA = new float[this.n];
+                this.bufB = new float[this.n];
             } else {
-                throw new IllegalStateException();
+                throw new IllegalStateException("Unsupported size: " + n);
             }
         }
     }
 
+    /**
+     * Returns the number of threads used by this transform.
+     *
+     * @return number of threads
+     */
+    public int getNumberOfThreads()
+    {
+        return nthreads;
+    }
+
+    /**
+     * Sets the number of threads used by this transform. The default is 1,
+     * which disables the parallel code paths. Only values of 1, 2 and 4 or
+     * more make a difference, and only for power-of-2 sizes of at least
+     * 8192.
+     *
+     * @param n number of threads
+     */
+    public void setNumberOfThreads(int n)
+    {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be greater than 0");
+        }
+        nthreads = n;
+    }
+
+    /**
+     * Checks if a transform of size n is supported: either a power of two,
+     * or an even number with no prime factors other than 2, 3 and 5.
+     *
+     * @param n size of data
+     *
+     * @return true if n is supported
+     */
+    public static boolean isSupportedSize(long n)
+    {
+        if (CommonUtils.isPowerOf2(n)) {
+            return true;
+        }
+        return n % 2 == 0 && MixedRadixFFT.isSupported(n);
+    }
+
+    /**
+     * Returns the smallest supported size that is a multiple of
+     * <code>multiple</code> and not smaller than n.
+     *
+     * @param n minimum size
+     * @param multiple required divisor, e.g. for vectorized loops
+     *
+     * @return a supported size
+     */
+    public static int nextSupportedSize(int n, int multiple)
+    {
+        int size = Math.max(n, multiple);
+        size = (size + multiple - 1) / multiple * multiple;
+        while (!isSupportedSize(size)) {
+            size += multiple;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the approximate size of the precomputed tables, in bytes.
+     *
+     * @return bytes used by the bit-reversal and twiddle tables
+     */
+    public long getMemoryBytes()
+    {
+        long bytes = 0;
+        if (ip != null) {
+            bytes += 4L * ip.length;
+        }
+        if (w != null) {
+            bytes += 4L * w.length;
+        }
+        if (fft != null) {
+            bytes += fft.getMemoryBytes();
+            bytes += 4L * (preTw.length + postTw.length + bufA.length + bufB.length);
+        }
+        return bytes;
+    }
+
     /**
      * Computes 1D inverse DCT (DCT-III) leaving the result in <code>a</code>.
      *  
@@ -123,28 +237,123 @@ public class FloatDCT_1D
         if (n == 1)
             return;
         if (isPowerOfTwo) {
-            float xr;
             if (scale) {
-                CommonUtils.scale(n, (float) sqrt(2.0 / n), a, offa, false);
-                a[offa] = a[offa] / (float) sqrt(2.0);
+                scale(a, offa);
             }
             CommonUtils.dctsub(n, a, offa, nc, w, nw);
             if (n > 4) {
-                CommonUtils.cftfsub(n, a, offa, ip, nw, w);
+                CommonUtils.cftfsub(n, a, offa, ip, nw, w, nthreads);
                 rftfsub(n, a, offa, nc, w, nw);
             } else if (n == 4) {
-                CommonUtils.cftfsub(n, a, offa, ip, nw, w);
+                CommonUtils.cftfsub(n, a, offa, ip, nw, w, nthreads);
             }
-            xr = a[offa] - a[offa + 1];
-            a[offa] += a[offa + 1];
-            for (int j = 2; j < n; j += 2) {
-                a[offa + j - 1] = a[offa + j] - a[offa + j + 1];
-                a[offa + j] += a[offa + j + 1];
+            unpack(a, offa);
+        } else {
+            if (scale) {
+                scale(a, offa);
+            }
+            inverseMixed(a, offa);
+        }
+    }
+
+    /**
+     * Computes 1D inverse DCT (DCT-III) of several arrays at once, leaving
+     * each result in place. Every array must have the size of this transform.
+     * Each pass of the FFT is applied to all arrays before moving on to the
+     * next pass, so the twiddle factors for that pass are reused while they
+     * are still in cache.
+     *  
+     * @param a
+     *              arrays of data to transform
+     * @param scale
+     *              if true then scaling is performed
+     */
+    public void inverse(final float[][] a, boolean scale)
+    {
+        for (float[] x : a) {
+            if (x.length != n) {
+                throw new IllegalArgumentException("array length must be " + n);
+            }
+        }
+        if (n == 1)
+            return;
+        if (isPowerOfTwo) {
+            for (float[] x : a) {
+                if (scale) {
+                    scale(x, 0);
+                }
+                CommonUtils.dctsub(n, x, 0, nc, w, nw);
+            }
+            if (n >= 4) {
+                CommonUtils.cftfsub(n, a, ip, nw, w, nthreads);
+            }
+            for (float[] x : a) {
+                if (n > 4) {
+                    rftfsub(n, x, 0, nc, w, nw);
+                }
+                unpack(x, 0);
             }
-            a[offa + n - 1] = xr;
         } else {
-            throw new IllegalStateException();
+            for (float[] x : a) {
+                inverse(x, 0, scale);
+            }
+        }
+    }
+
+    // Makhoul's algorithm: the DCT-III of n points is the real part of an
+    // n-point inverse DFT of y[k] - i*y[n-k], rotated by exp(i*pi*k/(2n)).
+    // That DFT has Hermitian input, so it's computed as a complex DFT of
+    // n/2 points instead.  Output sample 2m comes from DFT element m, and
+    // sample 2m+1 from element n-1-m.
+    private void inverseMixed(final float[] a, final int offa)
+    {
+        final int half = n / 2;
+        final float[] z = bufA;
+        final float c45 = (float) Math.sqrt(0.5);
+        for (int k = 0; k < half; k++) {
+            // Y[k] = pre(k) * (y[k] - i*y[n-k]), halved except for Y[0].
+            float pr = preTw[2 * k], pi = preTw[2 * k + 1];
+            float f = (k == 0) ? 1f : 0.5f;
+            float yr = a[offa + k] * f;
+            float yi = (k == 0) ? 0f : -a[offa + n - k] * f;
+            float y0r = yr * pr - yi * pi, y0i = yr * pi + yi * pr;
+            // Y[k + n/2], whose pre-twiddle is pre(k) * exp(i*pi/4).
+            float qr = (pr - pi) * c45, qi = (pr + pi) * c45;
+            yr = a[offa + k + half] * 0.5f;
+            yi = -a[offa + half - k] * 0.5f;
+            float y1r = yr * qr - yi * qi, y1i = yr * qi + yi * qr;
+            // Z[k] = (Y[k] + Y[k+n/2]) + i * (Y[k] - Y[k+n/2]) * exp(2*pi*i*k/n)
+            float er = y0r + y1r, ei = y0i + y1i;
+            float dr = y0r - y1r, di = y0i - y1i;
+            float wr = postTw[2 * k], wi = postTw[2 * k + 1];
+            float or = dr * wr - di * wi, oi = dr * wi + di * wr;
+            z[2 * k] = er - oi;
+            z[2 * k + 1] = ei + or;
+        }
+        // Element j of the n-point DFT is z[j] for even j, packed as
+        // (even, odd) pairs.
+        final float[] v = fft.inverse(z, bufB);
+        for (int m = 0; m < half; m++) {
+            a[offa + 2 * m] = v[m];
+            a[offa + 2 * m + 1] = v[n - 1 - m];
+        }
+    }
+
+    private void scale(float[] a, int offa)
+    {
+        CommonUtils.scale(n, (float) sqrt(2.0 / n), a, offa, false);
+        a[offa] = a[offa] / (float) sqrt(2.0);
+    }
+
+    private void unpack(float[] a, int offa)
+    {
+        float xr = a[offa] - a[offa + 1];
+        a[offa] += a[offa + 1];
+        for (int j = 2; j < n; j += 2) {
+            a[offa + j - 1] = a[offa + j] - a[offa + j + 1];
+            a[offa + j] += a[offa + j + 1];
         }
+        a[offa + n - 1] = xr;
     }
 
     private static void rftfsub(int n, float[] a, int offa, int nc, float[] c, int startc)
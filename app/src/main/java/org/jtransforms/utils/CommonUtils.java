@@ -26,6 +26,8 @@
  * ***** END LICENSE BLOCK ***** */
 package org.jtransforms.utils;
 
+import java.util.concurrent.Future;
+
 import static java.lang.Math.sin;
 import static java.lang.Math.cos;
 
@@ -38,10 +40,62 @@ import static java.lang.Math.cos;
  */
 public class CommonUtils
 {
+    private static int THREADS_BEGIN_N_1D_FFT_2THREADS = 8192;
+
+    private static int THREADS_BEGIN_N_1D_FFT_4THREADS = 65536;
+
     public CommonUtils()
     {
     }
 
+    /**
+     * Returns the minimal size of 1D data for which two threads are used.
+     *
+     * @return the minimal size of 1D data for which two threads are used
+     */
+    public static int getThreadsBeginN_1D_FFT_2Threads()
+    {
+        return THREADS_BEGIN_N_1D_FFT_2THREADS;
+    }
+
+    /**
+     * Returns the minimal size of 1D data for which four threads are used.
+     *
+     * @return the minimal size of 1D data for which four threads are used
+     */
+    public static int getThreadsBeginN_1D_FFT_4Threads()
+    {
+        return THREADS_BEGIN_N_1D_FFT_4THREADS;
+    }
+
+    /**
+     * Sets the minimal size of 1D data for which two threads are used.
+     *
+     * @param n the minimal size of 1D data for which two threads are used
+     */
+    public static void setThreadsBeginN_1D_FFT_2Threads(int n)
+    {
+        if (n < 1024) {
+            THREADS_BEGIN_N_1D_FFT_2THREADS = 1024;
+        } else {
+            THREADS_BEGIN_N_1D_FFT_2THREADS = n;
+        }
+    }
+
+    /**
+     * Sets the minimal size of 1D data for which four threads are used.
+     *
+     * @param n the minimal size of 1D data for which four threads are used
+     */
+    public static void setThreadsBeginN_1D_FFT_4Threads(int n)
+    {
+        if (n < 1024) {
+            THREADS_BEGIN_N_1D_FFT_4THREADS = 1024;
+        } else {
+            THREADS_BEGIN_N_1D_FFT_4THREADS = n;
+        }
+    }
+
     /**
      * Checks if x is a power-of-two number.
      *
@@ -161,14 +215,14 @@ public class CommonUtils
         }
     }
 
-    public static void cftfsub(int n, float[] a, int offa, int[] ip, int nw, float[] w)
+    public static void cftfsub(int n, float[] a, int offa, int[] ip, int nw, float[] w, int nthreads)
     {
         if (n > 8) {
             if (n > 32) {
                 cftf1st(n, a, offa, w, nw - (n >> 2));
-                /*if ((ConcurrencyUtils.getNumberOfThreads() > 1) && (n >= CommonUtils.getThreadsBeginN_1D_FFT_2Threads())) {
-                    cftrec4_th(n, a, offa, nw, w);
-                } else*/ if (n > 512) {
+                if ((nthreads > 1) && (n >= CommonUtils.getThreadsBeginN_1D_FFT_2Threads())) {
+                    cftrec4_th(n, a, offa, nw, w, nthreads);
+                } else if (n > 512) {
                     cftrec4(n, a, offa, nw, w);
                 } else if (n > 128) {
                     cftleaf(n, 1, a, offa, nw, w);
@@ -190,6 +244,28 @@ public class CommonUtils
         }
     }
 
+    /**
+     * Batched version of cftfsub(), for arrays of length n starting at
+     * offset 0. Each pass is applied to every array before the next pass.
+     * Falls back to one array at a time when the threaded path applies.
+     */
+    public static void cftfsub(int n, float[][] a, int[] ip, int nw, float[] w, int nthreads)
+    {
+        if ((n > 512) && !((nthreads > 1) && (n >= CommonUtils.getThreadsBeginN_1D_FFT_2Threads()))) {
+            for (float[] x : a) {
+                cftf1st(n, x, 0, w, nw - (n >> 2));
+            }
+            cftrec4(n, a, nw, w);
+            for (float[] x : a) {
+                bitrv2(n, ip, x, 0);
+            }
+        } else {
+            for (float[] x : a) {
+                cftfsub(n, x, 0, ip, nw, w, nthreads);
+            }
+        }
+    }
+
     public static void bitrv2(int n, int[] ip, float[] a, int offa)
     {
         int j1, k1, l, m, nh, nm;
@@ -918,6 +994,110 @@ public class CommonUtils
         }
     }
 
+    /**
+     * Batched version of cftrec4(), for arrays of length n starting at
+     * offset 0. Each subtree is finished in every array before moving on,
+     * so its slice of w stays in cache.
+     */
+    public static void cftrec4(int n, float[][] a, int nw, float[] w)
+    {
+        int isplt, j, k, m;
+
+        m = n;
+        while (m > 512) {
+            m >>= 2;
+            for (float[] x : a) {
+                cftmdl1(m, x, n - m, w, nw - (m >> 1));
+            }
+        }
+        for (float[] x : a) {
+            cftleaf(m, 1, x, n - m, nw, w);
+        }
+        k = 0;
+        for (j = n - m; j > 0; j -= m) {
+            k++;
+            for (float[] x : a) {
+                isplt = cfttree(m, j, k, x, 0, nw, w);
+                cftleaf(m, isplt, x, j - m, nw, w);
+            }
+        }
+    }
+
+    public static void cftrec4_th(final int n, final float[] a, final int offa, final int nw, final float[] w, final int maxThreads)
+    {
+        int i;
+        int idiv4, m, nthreads;
+        int idx = 0;
+        nthreads = 2;
+        idiv4 = 0;
+        m = n >> 1;
+        if ((maxThreads >= 4) && (n >= getThreadsBeginN_1D_FFT_4Threads())) {
+            nthreads = 4;
+            idiv4 = 1;
+            m >>= 1;
+        }
+        // The calling thread does the last subtree itself.
+        Future<?>[] futures = new Future[nthreads - 1];
+        final int mf = m;
+        for (i = 0; i < nthreads; i++) {
+            final int firstIdx = offa + i * m;
+            Runnable task;
+            if (i != idiv4) {
+                task = new Runnable()
+                {
+                    public void run()
+                    {
+                        int isplt, j, k, m;
+                        int idx1 = firstIdx + mf;
+                        m = n;
+                        while (m > 512) {
+                            m >>= 2;
+                            cftmdl1(m, a, idx1 - m, w, nw - (m >> 1));
+                        }
+                        cftleaf(m, 1, a, idx1 - m, nw, w);
+                        k = 0;
+                        int idx2 = firstIdx - m;
+                        for (j = mf - m; j > 0; j -= m) {
+                            k++;
+                            isplt = cfttree(m, j, k, a, firstIdx, nw, w);
+                            cftleaf(m, isplt, a, idx2 + j, nw, w);
+                        }
+                    }
+                };
+            } else {
+                task = new Runnable()
+                {
+                    public void run()
+                    {
+                        int isplt, j, k, m;
+                        int idx1 = firstIdx + mf;
+                        k = 1;
+                        m = n;
+                        while (m > 512) {
+                            m >>= 2;
+                            k <<= 2;
+                            cftmdl2(m, a, idx1 - m, w, nw - m);
+                        }
+                        cftleaf(m, 0, a, idx1 - m, nw, w);
+                        k >>= 1;
+                        int idx2 = firstIdx - m;
+                        for (j = mf - m; j > 0; j -= m) {
+                            k++;
+                            isplt = cfttree(m, j, k, a, firstIdx, nw, w);
+                            cftleaf(m, isplt, a, idx2 + j, nw, w);
+                        }
+                    }
+                };
+            }
+            if (i < nthreads - 1) {
+                futures[idx++] = ConcurrencyUtils.submit(task);
+            } else {
+                task.run();
+            }
+        }
+        ConcurrencyUtils.waitForCompletion(futures);
+    }
+
     public static int cfttree(int n, int j, int k, float[] a, int offa, int nw, float[] w)
     {
         int i, isplt, m;
@@ -0,0 +1,135 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JTransforms
+ * Copyright (c) 2007 onward, Piotr Wendykier
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package org.jtransforms.utils;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// For ChromaDoze, this is a cut-down version of the upstream class.  It uses
+// a plain ExecutorService, because ForkJoinPool needs API level 21.  The
+// thread count is set per transform (FloatDCT_1D.setNumberOfThreads()),
+// not globally, so transforms on different threads don't affect each other.
+
+/**
+ * Concurrency utilities.
+ *
+ * @author Piotr Wendykier (piotr.wendykier@gmail.com)
+ */
+public class ConcurrencyUtils
+{
+    /**
+     * Thread pool, created on first use.
+     */
+    private static ExecutorService THREAD_POOL = null;
+
+    private ConcurrencyUtils()
+    {
+    }
+
+    /**
+     * Submits a Runnable task for execution and returns a Future representing
+     * that task.
+     *
+     * @param task a Runnable task for execution
+     *
+     * @return a Future representing the task
+     */
+    public static Future<?> submit(Runnable task)
+    {
+        return getThreadPool().submit(task);
+    }
+
+    /**
+     * Waits for all threads to complete computation. An exception thrown by
+     * a task is rethrown here. Interrupts are deferred until every task has
+     * finished, because the tasks are still writing to the caller's array.
+     *
+     * @param futures handles to running threads
+     */
+    public static void waitForCompletion(Future<?>[] futures)
+    {
+        boolean interrupted = false;
+        try {
+            for (Future<?> future : futures) {
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) {
+                            throw (RuntimeException) cause;
+                        } else if (cause instanceof Error) {
+                            throw (Error) cause;
+                        }
+                        throw new RuntimeException(cause);
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getThreadPool()
+    {
+        if (THREAD_POOL == null) {
+            // Idle threads exit after a minute, so an unused pool costs nothing.
+            THREAD_POOL = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                private int count = 0;
+
+                public synchronized Thread newThread(final Runnable r)
+                {
+                    // Run at the same priority as the SampleGenerator
+                    // thread that waits on the workers.
+                    Runnable worker = new Runnable()
+                    {
+                        public void run()
+                        {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    };
+                    Thread t = new Thread(worker, "JTransformsWorker-" + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return THREAD_POOL;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * ChromaDoze
+ * Copyright (C) 2010-2025 Paul Marks https://pmarks.net
+ *
+ * This software is licensed under the GNU General Public License v3.
+ * A copy of the full license text may be found in the LICENSE file.
+ */
+package org.jtransforms.utils;
+
+// Written for ChromaDoze; none of this is from JTransforms.  It replaces
+// the upstream mixed-radix code, which was deleted along with everything
+// else unrelated to the power-of-2 IDCT, and lives in this package next to
+// the FloatDCT_1D that uses it.
+
+/**
+ * Unnormalized inverse complex DFT for sizes of the form 2^a * 3^b * 5^c,
+ * using the Stockham autosort algorithm with radix 4, 2, 3 and 5 stages.
+ * Data is interleaved: element k is (a[2k], a[2k+1]).
+ */
+public class MixedRadixFFT
+{
+
+    private final int n;
+
+    private final int[] factors;
+
+    // cos and sin of 2*pi*t/n, interleaved, for t in [0, n).
+    private final float[] tw;
+
+    /**
+     * Creates new instance of MixedRadixFFT.
+     *
+     * @param n number of complex elements
+     */
+    public MixedRadixFFT(int n)
+    {
+        if (!isSupported(n)) {
+            throw new IllegalArgumentException("n must be of the form 2^a * 3^b * 5^c");
+        }
+        this.n = n;
+        this.factors = factorize(n);
+        this.tw = new float[2 * n];
+        for (int t = 0; t < n; t++) {
+            double angle = 2 * Math.PI * t / n;
+            tw[2 * t] = (float) Math.cos(angle);
+            tw[2 * t + 1] = (float) Math.sin(angle);
+        }
+    }
+
+    /**
+     * Checks if n has no prime factors other than 2, 3 and 5.
+     *
+     * @param n size to check
+     *
+     * @return true if this class can transform n elements
+     */
+    public static boolean isSupported(long n)
+    {
+        if (n < 1) {
+            return false;
+        }
+        for (int p : new int[]{2, 3, 5}) {
+            while (n % p == 0) {
+                n /= p;
+            }
+        }
+        return n == 1;
+    }
+
+    private static int[] factorize(int n)
+    {
+        int[] tmp = new int[32];
+        int count = 0;
+        for (int p : new int[]{4, 2, 3, 5}) {
+            while (n % p == 0) {
+                tmp[count++] = p;
+                n /= p;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(tmp, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Returns the size of the twiddle table, in bytes.
+     *
+     * @return bytes used by the twiddle table
+     */
+    public long getMemoryBytes()
+    {
+        return 4L * tw.length;
+    }
+
+    /**
+     * Computes x[j] = sum_k a[k] * exp(2*pi*i*j*k/n), without scaling.
+     * Both arrays must hold 2*n floats, and both are overwritten.
+     *
+     * @param a
+     *              input data
+     * @param scratch
+     *              work area
+     *
+     * @return either <code>a</code> or <code>scratch</code>, whichever holds
+     *         the result
+     */
+    public float[] inverse(float[] a, float[] scratch)
+    {
+        float[] x = a;
+        float[] y = scratch;
+        int ns = 1;
+        for (int radix : factors) {
+            switch (radix) {
+                case 2:
+                    pass2(ns, x, y);
+                    break;
+                case 3:
+                    pass3(ns, x, y);
+                    break;
+                case 4:
+                    pass4(ns, x, y);
+                    break;
+                default:
+                    pass5(ns, x, y);
+                    break;
+            }
+            ns *= radix;
+            float[] swap = x;
+            x = y;
+            y = swap;
+        }
+        return x;
+    }
+
+    private void pass2(int ns, float[] x, float[] y)
+    {
+        final int l = n / 2;
+        final int step = n / (ns * 2);
+        for (int b = 0; b < l; b += ns) {
+            final int dst = b * 2;
+            for (int k = 0; k < ns; k++) {
+                final int j = b + k;
+                final int t = k * step;
+                float a0r = x[2 * j], a0i = x[2 * j + 1];
+                float cr = tw[2 * t], ci = tw[2 * t + 1];
+                float xr = x[2 * (j + l)], xi = x[2 * (j + l) + 1];
+                float a1r = xr * cr - xi * ci, a1i = xr * ci + xi * cr;
+                final int d0 = 2 * (dst + k);
+                final int d1 = d0 + 2 * ns;
+                y[d0] = a0r + a1r;
+                y[d0 + 1] = a0i + a1i;
+                y[d1] = a0r - a1r;
+                y[d1 + 1] = a0i - a1i;
+            }
+        }
+    }
+
+    private void pass3(int ns, float[] x, float[] y)
+    {
+        final float c = -0.5f;
+        final float s = (float) (Math.sqrt(3.0) / 2);
+        final int l = n / 3;
+        final int step = n / (ns * 3);
+        for (int b = 0; b < l; b += ns) {
+            final int dst = b * 3;
+            for (int k = 0; k < ns; k++) {
+                final int j = b + k;
+                final int t = k * step;
+                float a0r = x[2 * j], a0i = x[2 * j + 1];
+                float cr = tw[2 * t], ci = tw[2 * t + 1];
+                float xr = x[2 * (j + l)], xi = x[2 * (j + l) + 1];
+                float a1r = xr * cr - xi * ci, a1i = xr * ci + xi * cr;
+                cr = tw[2 * (2 * t)];
+                ci = tw[2 * (2 * t) + 1];
+                xr = x[2 * (j + 2 * l)];
+                xi = x[2 * (j + 2 * l) + 1];
+                float a2r = xr * cr - xi * ci, a2i = xr * ci + xi * cr;
+
+                float tr = a1r + a2r, ti = a1i + a2i;
+                float dr = s * (a1r - a2r), di = s * (a1i - a2i);
+                float mr = a0r + c * tr, mi = a0i + c * ti;
+                final int d0 = 2 * (dst + k);
+                final int d1 = d0 + 2 * ns;
+                final int d2 = d1 + 2 * ns;
+                y[d0] = a0r + tr;
+                y[d0 + 1] = a0i + ti;
+                y[d1] = mr - di;
+                y[d1 + 1] = mi + dr;
+                y[d2] = mr + di;
+                y[d2 + 1] = mi - dr;
+            }
+        }
+    }
+
+    private void pass4(int ns, float[] x, float[] y)
+    {
+        final int l = n / 4;
+        final int step = n / (ns * 4);
+        for (int b = 0; b < l; b += ns) {
+            final int dst = b * 4;
+            for (int k = 0; k < ns; k++) {
+                final int j = b + k;
+                final int t = k * step;
+                float a0r = x[2 * j], a0i = x[2 * j + 1];
+                float cr = tw[2 * t], ci = tw[2 * t + 1];
+                float xr = x[2 * (j + l)], xi = x[2 * (j + l) + 1];
+                float a1r = xr * cr - xi * ci, a1i = xr * ci + xi * cr;
+                cr = tw[2 * (2 * t)];
+                ci = tw[2 * (2 * t) + 1];
+                xr = x[2 * (j + 2 * l)];
+                xi = x[2 * (j + 2 * l) + 1];
+                float a2r = xr * cr - xi * ci, a2i = xr * ci + xi * cr;
+                cr = tw[2 * (3 * t)];
+                ci = tw[2 * (3 * t) + 1];
+                xr = x[2 * (j + 3 * l)];
+                xi = x[2 * (j + 3 * l) + 1];
+                float a3r = xr * cr - xi * ci, a3i = xr * ci + xi * cr;
+
+                float t0r = a0r + a2r, t0i = a0i + a2i;
+                float t1r = a0r - a2r, t1i = a0i - a2i;
+                float t2r = a1r + a3r, t2i = a1i + a3i;
+                float t3r = a1r - a3r, t3i = a1i - a3i;
+                final int d0 = 2 * (dst + k);
+                final int d1 = d0 + 2 * ns;
+                final int d2 = d1 + 2 * ns;
+                final int d3 = d2 + 2 * ns;
+                y[d0] = t0r + t2r;
+                y[d0 + 1] = t0i + t2i;
+                y[d1] = t1r - t3i;
+                y[d1 + 1] = t1i + t3r;
+                y[d2] = t0r - t2r;
+                y[d2 + 1] = t0i - t2i;
+                y[d3] = t1r + t3i;
+                y[d3 + 1] = t1i - t3r;
+            }
+        }
+    }
+
+    private void pass5(int ns, float[] x, float[] y)
+    {
+        final float c1 = (float) Math.cos(2 * Math.PI / 5);
+        final float s1 = (float) Math.sin(2 * Math.PI / 5);
+        final float c2 = (float) Math.cos(4 * Math.PI / 5);
+        final float s2 = (float) Math.sin(4 * Math.PI / 5);
+        final int l = n / 5;
+        final int step = n / (ns * 5);
+        for (int b = 0; b < l; b += ns) {
+            final int dst = b * 5;
+            for (int k = 0; k < ns; k++) {
+                final int j = b + k;
+                final int t = k * step;
+                float a0r = x[2 * j], a0i = x[2 * j + 1];
+                float cr = tw[2 * t], ci = tw[2 * t + 1];
+                float xr = x[2 * (j + l)], xi = x[2 * (j + l) + 1];
+                float a1r = xr * cr - xi * ci, a1i = xr * ci + xi * cr;
+                cr = tw[2 * (2 * t)];
+                ci = tw[2 * (2 * t) + 1];
+                xr = x[2 * (j + 2 * l)];
+                xi = x[2 * (j + 2 * l) + 1];
+                float a2r = xr * cr - xi * ci, a2i = xr * ci + xi * cr;
+                cr = tw[2 * (3 * t)];
+                ci = tw[2 * (3 * t) + 1];
+                xr = x[2 * (j + 3 * l)];
+                xi = x[2 * (j + 3 * l) + 1];
+                float a3r = xr * cr - xi * ci, a3i = xr * ci + xi * cr;
+                cr = tw[2 * (4 * t)];
+                ci = tw[2 * (4 * t) + 1];
+                xr = x[2 * (j + 4 * l)];
+                xi = x[2 * (j + 4 * l) + 1];
+                float a4r = xr * cr - xi * ci, a4i = xr * ci + xi * cr;
+
+                float t1r = a1r + a4r, t1i = a1i + a4i;
+                float t2r = a2r + a3r, t2i = a2i + a3i;
+                float d1r = a1r - a4r, d1i = a1i - a4i;
+                float d2r = a2r - a3r, d2i = a2i - a3i;
+                float m1r = a0r + c1 * t1r + c2 * t2r, m1i = a0i + c1 * t1i + c2 * t2i;
+                float m2r = a0r + c2 * t1r + c1 * t2r, m2i = a0i + c2 * t1i + c1 * t2i;
+                float n1r = s1 * d1r + s2 * d2r, n1i = s1 * d1i + s2 * d2i;
+                float n2r = s2 * d1r - s1 * d2r, n2i = s2 * d1i - s1 * d2i;
+                final int d0 = 2 * (dst + k);
+                final int stride = 2 * ns;
+                y[d0] = a0r + t1r + t2r;
+                y[d0 + 1] = a0i + t1i + t2i;
+                y[d0 + stride] = m1r - n1i;
+                y[d0 + stride + 1] = m1i + n1r;
+                y[d0 + 2 * stride] = m2r - n2i;
+                y[d0 + 2 * stride + 1] = m2i + n2r;
+                y[d0 + 3 * stride] = m2r + n2i;
+                y[d0 + 3 * stride + 1] = m2i - n2r;
+                y[d0 + 4 * stride] = m1r + n1i;
+                y[d0 + 4 * stride + 1] = m1i - n1r;
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package net.pmarks.chromadoze;
+
+import java.util.Locale;
+
+// Shared timing and output for the benchmark tests.  The numbers are for
+// comparing between versions, so every benchmark reports them the same
+// way: one "bench:" line each, which ./gradlew test shows in its output.
+final class Benchmark {
+    private Benchmark() {
+    }
+
+    // Run body warmup times, then runs more times, and return the fastest
+    // of the timed runs in nanoseconds.
+    static long bestNs(int warmup, int runs, Runnable body) {
+        for (int i = 0; i < warmup; i++) {
+            body.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            final long startNs = System.nanoTime();
+            body.run();
+            best = Math.min(best, System.nanoTime() - startNs);
+        }
+        return best;
+    }
+
+    static void report(String name, String format, Object... args) {
+        System.out.println("bench: " + name + ": " + String.format(Locale.US, format, args));
+    }
+}
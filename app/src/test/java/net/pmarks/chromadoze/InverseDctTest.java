@@ -0,0 +1,175 @@
+package net.pmarks.chromadoze;
+
+import org.jtransforms.dct.FloatDCT_1D;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+// Checks the FloatDCT_1D paths that SampleGenerator uses, and benchmarks
+// each against the plain serial transform it replaces.
+public class InverseDctTest {
+    private static float[] randomInput(Random rng, int n) {
+        final float[] a = new float[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = rng.nextFloat() * 2 - 1;
+        }
+        return a;
+    }
+
+    private static void assertClose(float[] expected, float[] actual) {
+        assertEquals(expected.length, actual.length);
+        float peak = 0;
+        for (float v : expected) {
+            peak = Math.max(peak, Math.abs(v));
+        }
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("index " + i, expected[i], actual[i], peak * 1e-5f);
+        }
+    }
+
+    private static float[] serialInverse(float[] input) {
+        final float[] a = input.clone();
+        new FloatDCT_1D(a.length).inverse(a, false);
+        return a;
+    }
+
+    @Test
+    public void threadedMatchesSerial() {
+        final Random rng = new Random(1);
+        for (int threads : new int[]{2, 4}) {
+            final float[] input = randomInput(rng, 65536);
+            final FloatDCT_1D dct = new FloatDCT_1D(input.length);
+            dct.setNumberOfThreads(threads);
+            final float[] a = input.clone();
+            dct.inverse(a, false);
+            assertClose(serialInverse(input), a);
+        }
+    }
+
+    // The parallel path for the first chunks of a rung, where latency
+    // matters more than throughput.
+    @Test
+    public void benchmarkThreads() {
+        final Random rng = new Random(2);
+        for (int n : new int[]{65536, 262144}) {
+            final float[] input = randomInput(rng, n);
+            final float[] a = new float[n];
+            final FloatDCT_1D dct = new FloatDCT_1D(n);
+            final long[] ns = new long[3];
+            final int[] threads = {1, 2, 4};
+            for (int t = 0; t < threads.length; t++) {
+                dct.setNumberOfThreads(threads[t]);
+                ns[t] = Benchmark.bestNs(20, 20, () -> {
+                    System.arraycopy(input, 0, a, 0, n);
+                    dct.inverse(a, false);
+                });
+            }
+            Benchmark.report("InverseDct threads n=" + n,
+                    "1 thread %.3f ms, 2 threads %.3f ms, 4 threads %.3f ms (%d cores)",
+                    ns[0] / 1e6, ns[1] / 1e6, ns[2] / 1e6,
+                    Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    @Test
+    public void batchMatchesSingle() {
+        final Random rng = new Random(3);
+        // Below and above the 512-point cutoff for the pass-by-pass path.
+        for (int n : new int[]{256, 65536}) {
+            final float[][] batch = new float[4][];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = randomInput(rng, n);
+            }
+            final float[][] expected = new float[batch.length][];
+            for (int i = 0; i < batch.length; i++) {
+                expected[i] = serialInverse(batch[i]);
+            }
+            new FloatDCT_1D(n).inverse(batch, false);
+            for (int i = 0; i < batch.length; i++) {
+                assertClose(expected[i], batch[i]);
+            }
+        }
+    }
+
+    // The LARGE_NOCLIP batch in SampleGenerator, against one chunk at a time.
+    @Test
+    public void benchmarkBatch() {
+        final Random rng = new Random(4);
+        final int count = 4;
+        for (int n : new int[]{32768, 65536}) {
+            final float[][] input = new float[count][];
+            final float[][] a = new float[count][n];
+            for (int i = 0; i < count; i++) {
+                input[i] = randomInput(rng, n);
+            }
+            final FloatDCT_1D dct = new FloatDCT_1D(n);
+            final long singleNs = Benchmark.bestNs(20, 20, () -> {
+                for (int i = 0; i < count; i++) {
+                    System.arraycopy(input[i], 0, a[i], 0, n);
+                    dct.inverse(a[i], false);
+                }
+            });
+            final long batchNs = Benchmark.bestNs(20, 20, () -> {
+                for (int i = 0; i < count; i++) {
+                    System.arraycopy(input[i], 0, a[i], 0, n);
+                }
+                dct.inverse(a, false);
+            });
+            Benchmark.report("InverseDct batch n=" + n,
+                    "%d chunks one at a time %.3f ms, batched %.3f ms (%.2fx)",
+                    count, singleNs / 1e6, batchNs / 1e6, (double) singleNs / batchNs);
+        }
+    }
+
+    // DCT-III by definition, in the unscaled form FloatDCT_1D computes.
+    private static float[] naiveInverse(float[] a) {
+        final int n = a.length;
+        final float[] x = new float[n];
+        for (int j = 0; j < n; j++) {
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += a[k] * Math.cos(Math.PI * (2 * j + 1) * k / (2.0 * n));
+            }
+            x[j] = (float) sum;
+        }
+        return x;
+    }
+
+    @Test
+    public void mixedRadixMatchesDefinition() {
+        final Random rng = new Random(5);
+        // Powers of 2 first, to pin down the convention.
+        for (int n : new int[]{64, 1024, 6, 10, 30, 96, 160, 360, 1000, 1536}) {
+            final float[] input = randomInput(rng, n);
+            final float[] a = input.clone();
+            new FloatDCT_1D(n).inverse(a, false);
+            assertClose(naiveInverse(input), a);
+        }
+    }
+
+    // Chunk sizes that aren't powers of 2, per sample, against the power
+    // of 2 that would otherwise have been rounded up to.
+    @Test
+    public void benchmarkMixedRadix() {
+        final Random rng = new Random(6);
+        final int pow2 = 65536;
+        final long pow2Ns = timeInverse(randomInput(rng, pow2));
+        for (int n : new int[]{36864, 40960, 49152, 61440}) {
+            final long ns = timeInverse(randomInput(rng, n));
+            Benchmark.report("InverseDct mixed-radix n=" + n,
+                    "%.3f ms, %.2f ns/sample; n=%d %.3f ms, %.2f ns/sample",
+                    ns / 1e6, (double) ns / n, pow2, pow2Ns / 1e6, (double) pow2Ns / pow2);
+        }
+    }
+
+    private static long timeInverse(float[] input) {
+        final float[] a = new float[input.length];
+        final FloatDCT_1D dct = new FloatDCT_1D(input.length);
+        return Benchmark.bestNs(20, 20, () -> {
+            System.arraycopy(input, 0, a, 0, a.length);
+            dct.inverse(a, false);
+        });
+    }
+}
@@ -0,0 +1,220 @@
+package net.pmarks.chromadoze;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Checks the shipped NoiseSource, and benchmarks it against the two
+// candidates that were tried in its place: a gaussian quantile table and
+// a counter-based (SplitMix64) generator.  Neither beat the byte noise on
+// speed, and after the IDCT the shape of the distribution isn't audible,
+// so they aren't in the app.  They live here so that can be rechecked.
+public class NoiseSourceTest {
+    private static final int SIZE = 65536;
+    private static final int BANDS = 32;
+
+    private interface Fill {
+        void fill(float[] envelope, float[] out);
+    }
+
+    // Normally-distributed noise, looked up from an inverse-CDF table
+    // with 16-bit random indices.
+    private static class GaussianNoise implements Fill {
+        private static final int TABLE_BITS = 16;
+        private static final float[] TABLE = makeTable();
+
+        private final XORShiftRandom mRandom = new XORShiftRandom();
+
+        // Scaled to the variance of uniform [-1, 1), like the byte noise.
+        private static float[] makeTable() {
+            final int n = 1 << TABLE_BITS;
+            final float[] table = new float[n];
+            final double scale = Math.sqrt(1.0 / 3.0);
+            for (int i = 0; i < n / 2; i++) {
+                final double z = inverseNormalCdf((i + 0.5) / n);
+                table[i] = (float) (z * scale);
+                table[n - 1 - i] = (float) (-z * scale);
+            }
+            return table;
+        }
+
+        // Acklam's rational approximation; relative error < 1.2e-9.
+        private static double inverseNormalCdf(double p) {
+            final double[] a = {-3.969683028665376e+01, 2.209460984245205e+02,
+                    -2.759285104469687e+02, 1.383577518672690e+02,
+                    -3.066479806614716e+01, 2.506628277459239e+00};
+            final double[] b = {-5.447609879822406e+01, 1.615858368580409e+02,
+                    -1.556989798598866e+02, 6.680131188771972e+01,
+                    -1.328068155288572e+01};
+            final double[] c = {-7.784894002430293e-03, -3.223964580411365e-01,
+                    -2.400758277161838e+00, -2.549732539343734e+00,
+                    4.374664141464968e+00, 2.938163982698783e+00};
+            final double[] d = {7.784695709041462e-03, 3.224671290700398e-01,
+                    2.445134137142996e+00, 3.754408661907416e+00};
+            if (p < 0.02425) {
+                final double q = Math.sqrt(-2 * Math.log(p));
+                return (((((c[0] * q + c[1]) * q + c[2]) * q + c[3]) * q + c[4]) * q + c[5]) /
+                        ((((d[0] * q + d[1]) * q + d[2]) * q + d[3]) * q + 1);
+            } else if (p > 1 - 0.02425) {
+                return -inverseNormalCdf(1 - p);
+            }
+            final double q = p - 0.5;
+            final double r = q * q;
+            return (((((a[0] * r + a[1]) * r + a[2]) * r + a[3]) * r + a[4]) * r + a[5]) * q /
+                    (((((b[0] * r + b[1]) * r + b[2]) * r + b[3]) * r + b[4]) * r + 1);
+        }
+
+        @Override
+        public void fill(float[] envelope, float[] out) {
+            final float[] table = TABLE;
+            final int mask = (1 << TABLE_BITS) - 1;
+            for (int i = 0; i < out.length; ) {
+                long rand = mRandom.nextLong();
+                for (int b = 0; b < 4; b++) {
+                    out[i] = envelope[i] * table[(int) rand & mask];
+                    i++;
+                    rand >>>= TABLE_BITS;
+                }
+            }
+        }
+    }
+
+    // Value i is a hash of (key, counter + i), so iterations don't depend
+    // on each other, and any range could go to another thread.
+    private static class CounterNoise implements Fill {
+        private static final long GAMMA = 0x9E3779B97F4A7C15L;
+
+        private final long mKey = mix(System.nanoTime());
+        private long mCounter = 0;
+
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+
+        @Override
+        public void fill(float[] envelope, float[] out) {
+            final float scale = 1f / 32768f;
+            final long base = mKey + mCounter * GAMMA;
+            final int blocks = out.length / 4;
+            for (int j = 0; j < blocks; j++) {
+                final long h = mix(base + j * GAMMA);
+                final int i = j * 4;
+                out[i] = envelope[i] * ((short) h * scale);
+                out[i + 1] = envelope[i + 1] * ((short) (h >>> 16) * scale);
+                out[i + 2] = envelope[i + 2] * ((short) (h >>> 32) * scale);
+                out[i + 3] = envelope[i + 3] * ((short) (h >>> 48) * scale);
+            }
+            mCounter += blocks;
+        }
+    }
+
+    private static class Stats {
+        double mean;
+        double variance;
+        double lag1;
+        // Geometric over arithmetic mean of the power in BANDS equal
+        // bands.  1 is perfectly flat.
+        double flatness;
+    }
+
+    private static Stats measure(float[] x) {
+        final Stats s = new Stats();
+        double sum = 0;
+        for (float v : x) {
+            sum += v;
+        }
+        s.mean = sum / x.length;
+        double var = 0;
+        double cov = 0;
+        for (int i = 0; i < x.length; i++) {
+            final double d = x[i] - s.mean;
+            var += d * d;
+            if (i > 0) {
+                cov += d * (x[i - 1] - s.mean);
+            }
+        }
+        s.variance = var / x.length;
+        s.lag1 = cov / var;
+
+        final int bandSize = x.length / BANDS;
+        double logSum = 0;
+        double powerSum = 0;
+        for (int b = 0; b < BANDS; b++) {
+            double power = 0;
+            for (int i = b * bandSize; i < (b + 1) * bandSize; i++) {
+                power += (double) x[i] * x[i];
+            }
+            logSum += Math.log(power);
+            powerSum += power;
+        }
+        s.flatness = Math.exp(logSum / BANDS) / (powerSum / BANDS);
+        return s;
+    }
+
+    // Report the fill time and the output's statistics, and check them.
+    private static void benchmark(String name, Fill source) {
+        final float[] envelope = new float[SIZE];
+        Arrays.fill(envelope, 1f);
+        final float[] out = new float[SIZE];
+        final long ns = Benchmark.bestNs(200, 200, () -> source.fill(envelope, out));
+        final double nsPerCoef = (double) ns / SIZE;
+
+        // The output is multiplied straight into the IDCT input, so every
+        // source must match the byte noise's loudness and whiteness.
+        final Stats s = measure(out);
+        Benchmark.report("NoiseSource " + name,
+                "%.3f ns/coef, mean %.4f, var %.4f, lag-1 corr %.4f, flatness %.4f",
+                nsPerCoef, s.mean, s.variance, s.lag1, s.flatness);
+        assertEquals(1.0 / 3.0, s.variance, 0.01);
+        // The byte noise has a small bias of -1/256.
+        assertEquals(0.0, s.mean, 0.02);
+        assertEquals(0.0, s.lag1, 0.02);
+        assertTrue(s.flatness > 0.99);
+    }
+
+    @Test
+    public void fillAppliesTheEnvelope() {
+        final float[] envelope = new float[64];
+        for (int i = 0; i < envelope.length; i++) {
+            envelope[i] = i < 32 ? 0f : 2f;
+        }
+        final float[] out = new float[64];
+        new NoiseSource().fill(envelope, out);
+        boolean nonZero = false;
+        for (int i = 0; i < out.length; i++) {
+            if (i < 32) {
+                assertEquals(0f, out[i], 0f);
+            } else {
+                assertTrue(out[i] >= -2f && out[i] < 2f);
+                nonZero |= out[i] != 0f;
+            }
+        }
+        assertTrue(nonZero);
+    }
+
+    @Test
+    public void independentSourcesDiffer() {
+        final float[] envelope = new float[SIZE];
+        Arrays.fill(envelope, 1f);
+        final float[] a = new float[SIZE];
+        final float[] b = new float[SIZE];
+        new NoiseSource().fill(envelope, a);
+        new NoiseSource().fill(envelope, b);
+        assertFalse(Arrays.equals(a, b));
+    }
+
+    // Speed and distribution of the shipped source and both candidates.
+    @Test
+    public void benchmarkSources() {
+        final NoiseSource shipped = new NoiseSource();
+        benchmark("byte (shipped)", shipped::fill);
+        benchmark("gaussian", new GaussianNoise());
+        benchmark("counter", new CounterNoise());
+    }
+}
@@ -0,0 +1,164 @@
+package net.pmarks.chromadoze;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PhononIndexTest {
+    private static final int BAND_COUNT = SpectrumData.BAND_COUNT;
+
+    private static long distance(Phonon a, Phonon b) {
+        long dist = 0;
+        for (int i = 0; i < BAND_COUNT; i++) {
+            final long d = Math.round(a.getBar(i) * 1023) - Math.round(b.getBar(i) * 1023);
+            dist += d * d;
+        }
+        return dist;
+    }
+
+    @Test
+    public void emptyIndexFindsNothing() {
+        final PhononIndex index = new PhononIndex();
+        final PhononMutable ph = TestPhonons.random(new Random(1));
+        assertNull(index.findEqual(ph));
+        assertNull(index.findNearest(ph));
+        assertFalse(index.remove(ph));
+    }
+
+    @Test
+    public void findEqualMatchesCopies() {
+        final Random rng = new Random(2);
+        final PhononIndex index = new PhononIndex();
+        final List<PhononMutable> saved = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final PhononMutable ph = TestPhonons.random(rng);
+            saved.add(ph);
+            index.add(ph);
+        }
+        assertEquals(200, index.size());
+        for (PhononMutable ph : saved) {
+            assertSame(ph, index.findEqual(ph.makeMutableCopy()));
+        }
+        assertNull(index.findEqual(TestPhonons.random(rng)));
+    }
+
+    @Test
+    public void removeKeepsTheRestFindable() {
+        // Removing in random order from a half-full table exercises the
+        // backward shift in remove().
+        final Random rng = new Random(3);
+        final PhononIndex index = new PhononIndex();
+        final List<PhononMutable> saved = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            final PhononMutable ph = TestPhonons.random(rng);
+            saved.add(ph);
+            index.add(ph);
+        }
+        while (!saved.isEmpty()) {
+            final PhononMutable gone = saved.remove(rng.nextInt(saved.size()));
+            assertTrue(index.remove(gone));
+            assertFalse(index.remove(gone));
+            assertNull(index.findEqual(gone));
+            if (saved.size() % 50 == 0) {
+                for (PhononMutable ph : saved) {
+                    assertSame(ph, index.findEqual(ph));
+                }
+            }
+        }
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void removeTakesTheExactObject() {
+        final PhononMutable a = TestPhonons.random(new Random(4));
+        final PhononMutable b = a.makeMutableCopy();
+        final PhononIndex index = new PhononIndex();
+        index.add(a);
+        index.add(b);
+        assertTrue(index.remove(b));
+        assertSame(a, index.findEqual(b));
+        assertFalse(index.remove(b));
+    }
+
+    @Test
+    public void findNearestMatchesBruteForce() {
+        final Random rng = new Random(5);
+        final List<PhononMutable> saved = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            saved.add(TestPhonons.random(rng));
+        }
+        final PhononIndex index = new PhononIndex();
+        index.rebuild(saved);
+        for (int q = 0; q < 200; q++) {
+            // Half the queries are saved presets with one bar nudged.
+            final PhononMutable query;
+            if (q % 2 == 0) {
+                query = TestPhonons.random(rng);
+            } else {
+                final PhononMutable base = saved.get(rng.nextInt(saved.size()));
+                final int[] bars = new int[BAND_COUNT];
+                for (int i = 0; i < BAND_COUNT; i++) {
+                    bars[i] = Math.round(base.getBar(i) * 1023);
+                }
+                final int band = rng.nextInt(BAND_COUNT);
+                bars[band] = bars[band] < 1023 ? bars[band] + 1 : bars[band] - 1;
+                query = TestPhonons.make(bars, 100, 18);
+            }
+            long best = Long.MAX_VALUE;
+            for (PhononMutable ph : saved) {
+                best = Math.min(best, distance(query, ph));
+            }
+            final Phonon found = index.findNearest(query);
+            assertNotNull(found);
+            assertEquals(best, distance(query, found));
+        }
+    }
+
+    @Test
+    public void findNearestSkipsExactCopies() {
+        final int[] bars = new int[BAND_COUNT];
+        final PhononMutable same = TestPhonons.make(bars, 100, 18);
+        bars[0] = 10;
+        final PhononMutable near = TestPhonons.make(bars, 100, 18);
+        bars[0] = 500;
+        final PhononMutable far = TestPhonons.make(bars, 100, 18);
+
+        final PhononIndex index = new PhononIndex();
+        index.add(far);
+        index.add(same);
+        index.add(near);
+        assertSame(near, index.findNearest(same.makeMutableCopy()));
+
+        index.remove(near);
+        index.remove(far);
+        assertNull(index.findNearest(same));
+    }
+
+    @Test
+    public void findNearestSeesLaterAdds() {
+        final Random rng = new Random(6);
+        final PhononIndex index = new PhononIndex();
+        final PhononMutable query = TestPhonons.random(rng);
+        index.add(TestPhonons.random(rng));
+        assertNotNull(index.findNearest(query));
+        final PhononMutable twin = TestPhonons.random(rng);
+        final int[] bars = new int[BAND_COUNT];
+        for (int i = 0; i < BAND_COUNT; i++) {
+            bars[i] = Math.round(query.getBar(i) * 1023);
+        }
+        bars[3] ^= 1;
+        final PhononMutable close = TestPhonons.make(bars, 100, 18);
+        index.add(twin);
+        index.add(close);
+        assertSame(close, index.findNearest(query));
+    }
+}
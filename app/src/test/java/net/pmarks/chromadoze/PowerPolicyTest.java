@@ -0,0 +1,148 @@
+package net.pmarks.chromadoze;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PowerPolicyTest {
+    // PowerManager.THERMAL_STATUS_*
+    private static final int THERMAL_NONE = 0;
+    private static final int THERMAL_LIGHT = 1;
+    private static final int THERMAL_MODERATE = 2;
+    private static final int THERMAL_SEVERE = 3;
+
+    private static class FakeStatusSource implements PowerPolicy.StatusSource {
+        int mThermalStatus = THERMAL_NONE;
+        boolean mPowerSaveMode = false;
+        int mBatteryPercent = 100;
+        boolean mCharging = false;
+        int mBatteryReads = 0;
+
+        @Override
+        public int getThermalStatus() {
+            return mThermalStatus;
+        }
+
+        @Override
+        public boolean isPowerSaveMode() {
+            return mPowerSaveMode;
+        }
+
+        @Override
+        public PowerPolicy.BatteryStatus getBatteryStatus() {
+            mBatteryReads++;
+            return new PowerPolicy.BatteryStatus(mBatteryPercent, mCharging);
+        }
+    }
+
+    private FakeStatusSource mSource;
+    private PowerPolicy mPolicy;
+    private long mNowMs = 0;
+
+    @Before
+    public void setUp() {
+        mSource = new FakeStatusSource();
+        mPolicy = new PowerPolicy(mSource);
+    }
+
+    // Take readings, far enough after the last ones to count.
+    private void update() {
+        assertTrue(mPolicy.update(mNowMs));
+        mNowMs += PowerPolicy.MIN_UPDATE_INTERVAL_MS;
+    }
+
+    @Test
+    public void relaxedByDefault() {
+        update();
+        assertFalse(mPolicy.isStressed());
+        assertTrue(mPolicy.isRefreshAllowed(true));
+        assertEquals(4, mPolicy.getParallelThreads(4));
+        assertFalse(mPolicy.useLargeBuffer());
+    }
+
+    @Test
+    public void readingsOnlyChangeOnUpdate() {
+        update();
+        mSource.mPowerSaveMode = true;
+        assertFalse(mPolicy.isStressed());
+        update();
+        assertTrue(mPolicy.isStressed());
+    }
+
+    @Test
+    public void updatesTooCloseTogetherKeepTheReadings() {
+        update();
+        mSource.mPowerSaveMode = true;
+        final long lastMs = mNowMs - PowerPolicy.MIN_UPDATE_INTERVAL_MS;
+        assertFalse(mPolicy.update(lastMs + PowerPolicy.MIN_UPDATE_INTERVAL_MS - 1));
+        assertFalse(mPolicy.isStressed());
+        assertEquals(1, mSource.mBatteryReads);
+        assertTrue(mPolicy.update(lastMs + PowerPolicy.MIN_UPDATE_INTERVAL_MS));
+        assertTrue(mPolicy.isStressed());
+        assertEquals(2, mSource.mBatteryReads);
+    }
+
+    @Test
+    public void lightThermalStatusIsNotStress() {
+        mSource.mThermalStatus = THERMAL_LIGHT;
+        update();
+        assertFalse(mPolicy.isStressed());
+    }
+
+    @Test
+    public void moderateThermalStatusBacksOff() {
+        for (int status : new int[]{THERMAL_MODERATE, THERMAL_SEVERE}) {
+            mSource.mThermalStatus = status;
+            update();
+            assertTrue(mPolicy.isStressed());
+            assertEquals(1, mPolicy.getParallelThreads(4));
+            assertTrue(mPolicy.useLargeBuffer());
+            // Thermal stress stops the refresh even when the battery is fine.
+            assertFalse(mPolicy.isRefreshAllowed(false));
+        }
+    }
+
+    @Test
+    public void batterySaverBacksOff() {
+        mSource.mPowerSaveMode = true;
+        mSource.mCharging = true;
+        update();
+        assertTrue(mPolicy.isStressed());
+        assertEquals(1, mPolicy.getParallelThreads(2));
+        assertTrue(mPolicy.useLargeBuffer());
+        assertFalse(mPolicy.isRefreshAllowed(false));
+    }
+
+    @Test
+    public void lowBatteryOnlyStopsRefresh() {
+        mSource.mBatteryPercent = 29;
+        update();
+        assertFalse(mPolicy.isStressed());
+        assertEquals(4, mPolicy.getParallelThreads(4));
+        assertFalse(mPolicy.isRefreshAllowed(true));
+        // Unless the user asked us not to check.
+        assertTrue(mPolicy.isRefreshAllowed(false));
+
+        mSource.mBatteryPercent = 30;
+        update();
+        assertTrue(mPolicy.isRefreshAllowed(true));
+    }
+
+    @Test
+    public void lowBatteryWhileChargingAllowsRefresh() {
+        mSource.mBatteryPercent = 5;
+        mSource.mCharging = true;
+        update();
+        assertTrue(mPolicy.isRefreshAllowed(true));
+    }
+
+    @Test
+    public void unknownBatteryAllowsRefresh() {
+        mSource.mBatteryPercent = -1;
+        update();
+        assertTrue(mPolicy.isRefreshAllowed(true));
+    }
+}
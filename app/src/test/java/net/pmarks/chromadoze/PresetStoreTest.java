@@ -0,0 +1,261 @@
+package net.pmarks.chromadoze;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PresetStoreTest {
+    private File mDir;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("presets", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+        mFile = new File(mDir, PresetStore.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : mDir.listFiles()) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    private static void assertSameList(Phonon scratch, List<? extends Phonon> saved,
+                                       List<PhononMutable> loaded) {
+        assertNotNull(loaded);
+        assertEquals(saved.size() + 1, loaded.size());
+        assertTrue(scratch.fastEquals(loaded.get(0)));
+        for (int i = 0; i < saved.size(); i++) {
+            assertTrue("index " + i, saved.get(i).fastEquals(loaded.get(i + 1)));
+        }
+    }
+
+    @Test
+    public void missingFileLoadsNothing() {
+        final PresetStore store = new PresetStore(mFile);
+        assertNull(store.loadScratch());
+        assertNull(store.loadNow());
+    }
+
+    @Test
+    public void saveNowRoundTrips() {
+        final Random rng = new Random(1);
+        final PhononMutable scratch = TestPhonons.random(rng);
+        final List<PhononMutable> saved = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            saved.add(TestPhonons.random(rng));
+        }
+        assertTrue(new PresetStore(mFile).saveNow(scratch, saved));
+
+        final PresetStore store = new PresetStore(mFile);
+        assertTrue(scratch.fastEquals(store.loadScratch()));
+        assertSameList(scratch, saved, store.loadNow());
+    }
+
+    @Test
+    public void unchangedLibraryWritesNothing() {
+        final Random rng = new Random(2);
+        final PhononMutable scratch = TestPhonons.random(rng);
+        final List<PhononMutable> saved = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            saved.add(TestPhonons.random(rng));
+        }
+        PresetStore store = new PresetStore(mFile);
+        assertTrue(store.saveNow(scratch, saved));
+        assertFalse(store.save(scratch, saved));
+
+        store = new PresetStore(mFile);
+        store.loadNow();
+        assertFalse(store.save(scratch, saved));
+        assertTrue(store.save(TestPhonons.random(rng), saved));
+    }
+
+    @Test
+    public void incrementalSavesMatchTheList() {
+        final Random rng = new Random(3);
+        PhononMutable scratch = TestPhonons.random(rng);
+        final List<PhononMutable> saved = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            saved.add(TestPhonons.random(rng));
+        }
+        PresetStore store = new PresetStore(mFile);
+        assertTrue(store.saveNow(scratch, saved));
+
+        for (int round = 0; round < 200; round++) {
+            final int ops = 1 + rng.nextInt(4);
+            for (int op = 0; op < ops; op++) {
+                switch (rng.nextInt(4)) {
+                    case 0: {
+                        final int index = rng.nextInt(saved.size() + 1);
+                        saved.add(index, TestPhonons.random(rng));
+                        store.onInsert(index);
+                        break;
+                    }
+                    case 1:
+                        if (!saved.isEmpty()) {
+                            final int index = rng.nextInt(saved.size());
+                            saved.remove(index);
+                            store.onRemove(index);
+                        }
+                        break;
+                    case 2:
+                        if (!saved.isEmpty()) {
+                            final int from = rng.nextInt(saved.size());
+                            final int to = rng.nextInt(saved.size());
+                            UIState.moveItem(saved, from, to);
+                            store.onMove(from, to);
+                        }
+                        break;
+                    default:
+                        scratch = TestPhonons.random(rng);
+                        break;
+                }
+            }
+            store.save(scratch, saved);
+            if (round % 20 == 0) {
+                // Reload from disk, and keep editing through the new store.
+                store = new PresetStore(mFile);
+                assertSameList(scratch, saved, store.loadNow());
+            }
+        }
+        assertSameList(scratch, saved, new PresetStore(mFile).loadNow());
+    }
+
+    @Test
+    public void scratchSavesBeforeTheLibraryLoads() {
+        final Random rng = new Random(7);
+        final PhononMutable scratch = TestPhonons.random(rng);
+        final List<PhononMutable> saved = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            saved.add(TestPhonons.random(rng));
+        }
+        assertTrue(new PresetStore(mFile).saveNow(scratch, saved));
+
+        PresetStore store = new PresetStore(mFile);
+        assertFalse(store.saveScratch(scratch));
+        assertTrue(scratch.fastEquals(store.loadScratch()));
+        assertFalse(store.saveScratch(scratch));
+        final PhononMutable edited = TestPhonons.random(rng);
+        assertTrue(store.saveScratch(edited));
+
+        store = new PresetStore(mFile);
+        assertTrue(edited.fastEquals(store.loadScratch()));
+        assertSameList(edited, saved, store.loadNow());
+    }
+
+    @Test
+    public void damagedListLoadsWhatItCan() throws IOException {
+        final Random rng = new Random(4);
+        final PhononMutable scratch = TestPhonons.random(rng);
+        final List<PhononMutable> saved = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            saved.add(TestPhonons.random(rng));
+        }
+        assertTrue(new PresetStore(mFile).saveNow(scratch, saved));
+
+        // Point the 4th saved Phonon (slot 4) back at slot 2.
+        final int slotSize = 4 + PhononMutable.BINARY_SIZE;
+        final RandomAccessFile f = new RandomAccessFile(mFile, "rw");
+        try {
+            f.seek(16 + 4 * slotSize);
+            f.writeInt(2);
+        } finally {
+            f.close();
+        }
+
+        PresetStore store = new PresetStore(mFile);
+        assertSameList(scratch, saved.subList(0, 4), store.loadNow());
+        // The next save repairs the file, even with no edits.
+        final List<PhononMutable> kept = new ArrayList<>(saved.subList(0, 4));
+        assertTrue(store.save(scratch, kept));
+        store = new PresetStore(mFile);
+        assertSameList(scratch, kept, store.loadNow());
+        assertFalse(store.save(scratch, kept));
+    }
+
+    @Test
+    public void version1FileIsReadAndUpgraded() throws IOException {
+        final Random rng = new Random(5);
+        final List<PhononMutable> all = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            all.add(TestPhonons.random(rng));
+        }
+        final int recordSize = PhononMutable.BINARY_SIZE;
+        final byte[] data = new byte[8 + all.size() * recordSize];
+        data[0] = 'C';
+        data[1] = 'D';
+        data[2] = 'P';
+        data[3] = 'S';
+        data[4] = 1;
+        for (int i = 0; i < all.size(); i++) {
+            all.get(i).writeBinary(data, 8 + i * recordSize);
+        }
+        final FileOutputStream os = new FileOutputStream(mFile);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+
+        PresetStore store = new PresetStore(mFile);
+        final PhononMutable scratch = all.get(0);
+        final List<PhononMutable> saved = all.subList(1, all.size());
+        assertTrue(scratch.fastEquals(store.loadScratch()));
+        assertSameList(scratch, saved, store.loadNow());
+
+        // The scratch record can be updated in place before the upgrade.
+        store = new PresetStore(mFile);
+        assertTrue(scratch.fastEquals(store.loadScratch()));
+        final PhononMutable edited = TestPhonons.random(rng);
+        assertTrue(store.saveScratch(edited));
+        store = new PresetStore(mFile);
+        assertSameList(edited, saved, store.loadNow());
+
+        // Version 1 files always get rewritten.
+        assertTrue(store.save(edited, saved));
+        store = new PresetStore(mFile);
+        assertSameList(edited, saved, store.loadNow());
+        assertFalse(store.save(edited, saved));
+    }
+
+    // Startup timing: the main thread only waits for loadScratch(), and
+    // the rest of the library decodes in the background.  Compare that
+    // against decoding the whole library up front, as loadState() used to.
+    @Test
+    public void benchmarkStartupLoad() {
+        final int count = 20000;
+        final Random rng = new Random(6);
+        final PhononMutable scratch = TestPhonons.random(rng);
+        final List<PhononMutable> saved = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            saved.add(TestPhonons.random(rng));
+        }
+        assertTrue(new PresetStore(mFile).saveNow(scratch, saved));
+
+        final long scratchNs = Benchmark.bestNs(5, 20, () ->
+                assertNotNull(new PresetStore(mFile).loadScratch()));
+        final long fullNs = Benchmark.bestNs(5, 20, () ->
+                assertEquals(count + 1, new PresetStore(mFile).loadNow().size()));
+        Benchmark.report("PresetStore " + count + " presets",
+                "scratch %.2f ms, full library %.2f ms", scratchNs / 1e6, fullNs / 1e6);
+        assertTrue(scratchNs < fullNs);
+    }
+}
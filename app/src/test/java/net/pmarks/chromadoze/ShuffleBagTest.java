@@ -0,0 +1,159 @@
+package net.pmarks.chromadoze;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShuffleBagTest {
+    private static ShuffleBag makeBag(int size) {
+        final ShuffleBag bag = new ShuffleBag();
+        for (int i = 0; i < size; i++) {
+            bag.put(i, false);
+        }
+        return bag;
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void emptyBagThrows() {
+        new ShuffleBag().getNext();
+    }
+
+    @Test
+    public void neverPlayedComeFirstInLifoOrder() {
+        final ShuffleBag bag = makeBag(10);
+        bag.put(10, true);
+        bag.put(11, true);
+        assertEquals(11, bag.getNext());
+        assertEquals(10, bag.getNext());
+        assertTrue(bag.getNext() < 10);
+        assertEquals(12, bag.size());
+    }
+
+    @Test
+    public void repeatsKeepTheMinimumDistance() {
+        for (int distance : new int[]{0, 1, 5, 31}) {
+            final int size = 32;
+            final ShuffleBag bag = makeBag(size);
+            bag.setMinRepeatDistance(distance);
+            final int[] lastSeen = new int[size];
+            Arrays.fill(lastSeen, -1000);
+            final int[] counts = new int[size];
+            for (int draw = 0; draw < 20000; draw++) {
+                final int x = bag.getNext();
+                assertTrue("distance " + distance, draw - lastSeen[x] > distance);
+                lastSeen[x] = draw;
+                counts[x]++;
+            }
+            for (int count : counts) {
+                assertTrue(count > 0);
+            }
+        }
+    }
+
+    @Test
+    public void defaultDistanceIsHalfTheBag() {
+        final int size = 20;
+        final ShuffleBag bag = makeBag(size);
+        final int[] lastSeen = new int[size];
+        Arrays.fill(lastSeen, -1000);
+        for (int draw = 0; draw < 5000; draw++) {
+            final int x = bag.getNext();
+            assertTrue(draw - lastSeen[x] > size / 2);
+            lastSeen[x] = draw;
+        }
+    }
+
+    @Test
+    public void distanceLargerThanTheBagIsRelaxed() {
+        final ShuffleBag bag = makeBag(3);
+        bag.setMinRepeatDistance(100);
+        for (int i = 0; i < 100; i++) {
+            bag.getNext();
+        }
+        assertEquals(3, bag.size());
+    }
+
+    @Test
+    public void drawsAreUniform() {
+        final int size = 8;
+        final int draws = 80000;
+        final ShuffleBag bag = makeBag(size);
+        bag.setMinRepeatDistance(0);
+        final int[] counts = new int[size];
+        for (int i = 0; i < draws; i++) {
+            counts[bag.getNext()]++;
+        }
+        // About 10 standard deviations.
+        for (int count : counts) {
+            assertEquals(draws / size, count, 1000);
+        }
+    }
+
+    @Test
+    public void negativeDistanceRestoresTheDefault() {
+        final int size = 20;
+        final ShuffleBag bag = makeBag(size);
+        bag.setMinRepeatDistance(0);
+        bag.setMinRepeatDistance(-1);
+        bag.clear();
+        for (int i = 0; i < size; i++) {
+            bag.put(i, false);
+        }
+        final int[] lastSeen = new int[size];
+        Arrays.fill(lastSeen, -1000);
+        for (int draw = 0; draw < 5000; draw++) {
+            final int x = bag.getNext();
+            assertTrue(draw - lastSeen[x] > size / 2);
+            lastSeen[x] = draw;
+        }
+    }
+
+    @Test
+    public void truncateForgetsLargeNumbers() {
+        final ShuffleBag bag = makeBag(10);
+        for (int i = 0; i < 7; i++) {
+            bag.getNext();
+        }
+        bag.truncate(4);
+        assertEquals(4, bag.size());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bag.getNext() < 4);
+        }
+    }
+
+    @Test
+    public void clearEmptiesTheBag() {
+        final ShuffleBag bag = makeBag(10);
+        bag.clear();
+        assertEquals(0, bag.size());
+        bag.put(7, false);
+        assertEquals(7, bag.getNext());
+    }
+
+    // Microbenchmark: draws from pools of up to thousands of chunks, with
+    // the default distance and with none.  The bound is loose; the reported
+    // numbers are what to compare between versions.
+    @Test
+    public void benchmarkLargePool() {
+        final int draws = 100000;
+        for (int size : new int[]{32, 4096}) {
+            for (int distance : new int[]{-1, 0}) {
+                final ShuffleBag bag = makeBag(size);
+                bag.setMinRepeatDistance(distance);
+                final long ns = Benchmark.bestNs(20, 20, () -> {
+                    for (int i = 0; i < draws; i++) {
+                        bag.getNext();
+                    }
+                });
+                final double nsPerDraw = (double) ns / draws;
+                Benchmark.report("ShuffleBag size=" + size + " distance=" + distance,
+                        "%.1f ns/draw", nsPerDraw);
+                assertTrue(nsPerDraw < 2000);
+            }
+        }
+    }
+}
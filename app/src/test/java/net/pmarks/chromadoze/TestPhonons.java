@@ -0,0 +1,38 @@
+package net.pmarks.chromadoze;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+// Phonon fixtures shared by the tests.  Each one is round-tripped through
+// the binary format, which quantizes the bars the way saved presets are,
+// and leaves the Phonon clean.
+final class TestPhonons {
+    private static final int BAND_COUNT = SpectrumData.BAND_COUNT;
+
+    private TestPhonons() {
+    }
+
+    // bars are in [0, 1023].
+    static PhononMutable make(int[] bars, int minVol, int period) {
+        final PhononMutable ph = new PhononMutable();
+        for (int i = 0; i < BAND_COUNT; i++) {
+            ph.setBar(i, bars[i] / 1023f);
+        }
+        ph.setMinVol(minVol);
+        ph.setPeriod(period);
+        final byte[] buf = new byte[PhononMutable.BINARY_SIZE];
+        ph.writeBinary(buf, 0);
+        final PhononMutable clean = new PhononMutable();
+        assertTrue(clean.loadFromBinary(buf, 0));
+        return clean;
+    }
+
+    static PhononMutable random(Random rng) {
+        final int[] bars = new int[BAND_COUNT];
+        for (int i = 0; i < BAND_COUNT; i++) {
+            bars[i] = rng.nextInt(1024);
+        }
+        return make(bars, rng.nextInt(101), rng.nextInt(PhononMutable.PERIOD_MAX + 1));
+    }
+}